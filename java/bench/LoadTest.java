@@ -0,0 +1,300 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator for the Hotel operations. Requests arrive at a
+ * fixed target rate regardless of how fast earlier ones complete; each runs
+ * on its own virtual thread and borrows one of a fixed pool of connections.
+ * Response time is measured from the moment a request was scheduled to
+ * start, not from when it actually started, so queueing behind a slow
+ * database shows up in the percentiles instead of being hidden by a
+ * client that waits (coordinated omission). Service time, measured from
+ * the actual start, is reported next to it.
+ *
+ * Usage: mvn test-compile package, then
+ *    java -cp target/classes:target/test-classes:target/lib/* LoadTest <dbname> <port> <user>
+ *
+ * Configuration (system properties):
+ *    load.rate         requests per second (default 500)
+ *    load.seconds      test duration (default 60)
+ *    load.connections  database connections shared by the clients (default 32)
+ *    load.maxInFlight  requests in flight before arrivals are dropped (default 100000)
+ *    load.mix          operation weights (default viewRooms:70,bookRooms:20,reports:10)
+ *                      operations: viewRooms, bookRooms, bookRoomsBatched,
+ *                      searchRooms, recentBookings, reports
+ *    load.batch.size   bookings per statement of bookRoomsBatched, at most 16383 (default 100)
+ *    load.batch.lingerMillis  how long a bookRoomsBatched batch waits to fill (default 2)
+ *    load.days         bookings and searches use dates within this many days (default 365)
+ *
+ * bookRoomsBatched sends bookings through a BookingBatcher on a connection
+ * of its own instead of borrowing one from the pool.
+ *
+ * The database can be seeded at any scale with sql/scripts/seed_db.sh.
+ *
+ */
+public class LoadTest {
+
+   private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+
+   /**
+    * Results of one operation type.
+    */
+   static class OperationResult {
+      final LatencyHistogram response = new LatencyHistogram();
+      final LatencyHistogram service = new LatencyHistogram();
+      final LongAdder ok = new LongAdder();
+      final LongAdder errors = new LongAdder();
+      final LongAdder conflicts = new LongAdder();
+   }//end OperationResult
+
+   private final BlockingQueue<Hotel> _pool;
+   private final Map<String, OperationResult> _results = new LinkedHashMap<String, OperationResult>();
+   private final String[] _mix;
+   private final int[] _weights;
+   private final int _totalWeight;
+   private final int _days;
+   private final BookingBatcher _batcher;
+
+   // data the generated requests pick from
+   private final List<String[]> _rooms = new ArrayList<String[]>();
+   private final List<String> _customers = new ArrayList<String>();
+   private final List<String[]> _managedHotels = new ArrayList<String[]>();
+
+   private final LatencyHistogram _connectionWait = new LatencyHistogram();
+   private final AtomicLong _inFlight = new AtomicLong();
+   private final LongAdder _dropped = new LongAdder();
+
+   LoadTest(List<Hotel> connections, BookingBatcher batcher, String mix, int days) throws SQLException {
+      this._pool = new ArrayBlockingQueue<Hotel>(connections.size(), false, connections);
+      this._batcher = batcher;
+      this._days = days;
+      String[] parts = mix.split(",");
+      this._mix = new String[parts.length];
+      this._weights = new int[parts.length];
+      int total = 0;
+      for (int i = 0; i < parts.length; i++) {
+         String[] kv = parts[i].trim().split(":");
+         _mix[i] = kv[0].trim();
+         _weights[i] = Integer.parseInt(kv[1].trim());
+         total += _weights[i];
+         _results.put(_mix[i], new OperationResult());
+      }
+      this._totalWeight = total;
+      if (_results.containsKey("bookRoomsBatched") && batcher == null)
+         throw new IllegalArgumentException("bookRoomsBatched needs a BookingBatcher");
+
+      Hotel esql = connections.get(0);
+      esql.setOperation("loadTestSetup");
+      for (List<String> row : esql.executeQueryOnAllShards("SELECT hotelID, roomNumber FROM Rooms", null, 0))
+         _rooms.add(new String[] { row.get(0), row.get(1) });
+      for (List<String> row : esql.executeQueryAndReturnResult("SELECT userID FROM Users WHERE userType LIKE 'customer%'"))
+         _customers.add(row.get(0));
+      for (List<String> row : esql.executeQueryAndReturnResult("SELECT hotelID, managerUserID FROM Hotel"))
+         _managedHotels.add(new String[] { row.get(0), row.get(1) });
+      if (_rooms.isEmpty() || _customers.isEmpty() || _managedHotels.isEmpty())
+         throw new SQLException("The database needs rooms, customers and hotels to generate load");
+   }//end LoadTest
+
+   /**
+    * Issues requests at the given rate for the given time, then waits for
+    * the requests still in flight.
+    */
+   void run(double rate, long seconds, long maxInFlight) throws InterruptedException {
+      long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+      long start = System.nanoTime();
+      long end = start + TimeUnit.SECONDS.toNanos(seconds);
+      ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor();
+      for (long intended = start; intended < end; intended += interval) {
+         long wait = intended - System.nanoTime();
+         if (wait > 0)
+            LockSupport.parkNanos(wait);
+         // a request that is late is still sent, and its lateness counts
+         // towards its response time.
+         if (_inFlight.get() >= maxInFlight) {
+            _dropped.increment();
+            continue;
+         }
+         final long scheduled = intended;
+         final String operation = pick();
+         _inFlight.incrementAndGet();
+         clients.execute(() -> execute(operation, scheduled));
+      }
+      clients.shutdown();
+      clients.awaitTermination(1, TimeUnit.HOURS);
+   }//end run
+
+   private String pick() {
+      int r = ThreadLocalRandom.current().nextInt(_totalWeight);
+      for (int i = 0; i < _mix.length; i++) {
+         r -= _weights[i];
+         if (r < 0)
+            return _mix[i];
+      }
+      return _mix[_mix.length - 1];
+   }//end pick
+
+   private void execute(String operation, long scheduled) {
+      OperationResult result = _results.get(operation);
+      Hotel esql = null;
+      try{
+         long waitStart = System.nanoTime();
+         if (!operation.equals("bookRoomsBatched"))
+            esql = _pool.take();
+         long started = System.nanoTime();
+         _connectionWait.record((started - waitStart) / 1000);
+         try{
+            issue(esql, operation);
+            result.ok.increment();
+         }catch (SQLException e){
+            // unique_violation on a booking means the slot was taken.
+            if ("23505".equals(e.getSQLState()))
+               result.conflicts.increment();
+            else
+               result.errors.increment();
+         }catch (RuntimeException e){
+            result.errors.increment();
+         }
+         long finished = System.nanoTime();
+         result.response.record((finished - scheduled) / 1000);
+         result.service.record((finished - started) / 1000);
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }finally{
+         if (esql != null)
+            _pool.add(esql);
+         _inFlight.decrementAndGet();
+      }
+   }//end execute
+
+   private void issue(Hotel esql, String operation) throws SQLException, InterruptedException {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      String date = LocalDate.now().plusDays(1 + random.nextInt(_days)).format(DATE);
+      if (operation.equals("bookRoomsBatched")) {
+         String[] room = _rooms.get(random.nextInt(_rooms.size()));
+         String customer = _customers.get(random.nextInt(_customers.size()));
+         BookingBatcher.Result booked;
+         try{
+            booked = _batcher.submit(Integer.parseInt(customer), Integer.parseInt(room[0]), Integer.parseInt(room[1]), date).get();
+         }catch (ExecutionException e){
+            throw new SQLException(e.getCause());
+         }
+         if (booked.status == BookingBatcher.Result.Status.CONFLICT)
+            throw new SQLException(booked.message, "23505");
+         if (booked.status == BookingBatcher.Result.Status.FAILED)
+            throw new SQLException(booked.message);
+         return;
+      }
+      esql.setOperation(operation);
+      if (operation.equals("viewRooms")) {
+         String[] room = _rooms.get(random.nextInt(_rooms.size()));
+         Hotel.availableRooms(esql, room[0], date);
+      }else if (operation.equals("bookRooms")) {
+         String[] room = _rooms.get(random.nextInt(_rooms.size()));
+         String customer = _customers.get(random.nextInt(_customers.size()));
+         Hotel.bookRoom(esql, customer, room[0], room[1], date);
+      }else if (operation.equals("searchRooms")) {
+         String last = LocalDate.parse(date, DATE).plusDays(random.nextInt(1, 7)).format(DATE);
+         Hotel.searchRooms(esql, random.nextInt(100), random.nextInt(100), 30, date, last, 1000 + random.nextInt(1000), 10, random.nextBoolean());
+      }else if (operation.equals("recentBookings")) {
+         Hotel.recentBookings(esql, _customers.get(random.nextInt(_customers.size())));
+      }else if (operation.equals("reports")) {
+         String[] hotel = _managedHotels.get(random.nextInt(_managedHotels.size()));
+         switch (random.nextInt(4)) {
+            case 0: esql.setOperation("viewBookingHistoryofHotel");
+                    Hotel.bookingHistory(esql, hotel[1], LocalDate.now().minusDays(30).format(DATE), date); break;
+            case 1: esql.setOperation("viewRecentUpdates");
+                    Hotel.recentUpdates(esql, hotel[1]); break;
+            case 2: esql.setOperation("viewRegularCustomers");
+                    Hotel.regularCustomers(esql, hotel[0]); break;
+            default: esql.setOperation("viewRoomRepairHistory");
+                    Hotel.repairHistory(esql, hotel[1]); break;
+         }
+      }else {
+         throw new IllegalArgumentException("Unknown operation " + operation);
+      }
+   }//end issue
+
+   String report(double seconds) {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("%-16s %9s %9s %8s %8s %10s %10s %10s %10s %10s %12s%n",
+         "Operation", "Requests", "Req/s", "Error%", "Confl%", "p50(us)", "p90(us)", "p99(us)", "p99.9(us)", "Max(us)", "Svc p99(us)"));
+      for (Map.Entry<String, OperationResult> e : _results.entrySet()) {
+         OperationResult r = e.getValue();
+         long total = r.ok.sum() + r.errors.sum() + r.conflicts.sum();
+         sb.append(String.format("%-16s %9d %9.1f %8.2f %8.2f %10d %10d %10d %10d %10d %12d%n",
+            e.getKey(), total, total / seconds,
+            total == 0 ? 0.0 : 100.0 * r.errors.sum() / total,
+            total == 0 ? 0.0 : 100.0 * r.conflicts.sum() / total,
+            r.response.percentile(50), r.response.percentile(90), r.response.percentile(99),
+            r.response.percentile(99.9), r.response.max(), r.service.percentile(99)));
+      }
+      sb.append(String.format("Connection wait p50/p99/max (us): %d / %d / %d%n",
+         _connectionWait.percentile(50), _connectionWait.percentile(99), _connectionWait.max()));
+      sb.append(String.format("Dropped arrivals (over load.maxInFlight): %d%n", _dropped.sum()));
+      return sb.toString();
+   }//end report
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            LoadTest.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+
+      double rate = Double.parseDouble(System.getProperty("load.rate", "500"));
+      long seconds = Long.getLong("load.seconds", 60L);
+      int connections = Integer.getInteger("load.connections", 32);
+      long maxInFlight = Long.getLong("load.maxInFlight", 100000L);
+      String mix = System.getProperty("load.mix", "viewRooms:70,bookRooms:20,reports:10");
+      int days = Integer.getInteger("load.days", 365);
+      int batchSize = Integer.getInteger("load.batch.size", 100);
+      long lingerMillis = Long.getLong("load.batch.lingerMillis", 2L);
+
+      List<Hotel> pool = new ArrayList<Hotel>();
+      for (int i = 0; i < connections; i++)
+         pool.add(new Hotel(args[0], args[1], args[2], ""));
+      Hotel batcherConnection = null;
+      BookingBatcher batcher = null;
+      if (mix.contains("bookRoomsBatched")) {
+         batcherConnection = new Hotel(args[0], args[1], args[2], "");
+         batcher = new BookingBatcher(batcherConnection, batchSize, lingerMillis, batchSize * 10);
+      }
+      try{
+         LoadTest test = new LoadTest(pool, batcher, mix, days);
+         System.out.printf("%nRunning %s at %.0f req/s for %d s on %d connections%n", mix, rate, seconds, connections);
+         long start = System.nanoTime();
+         test.run(rate, seconds, maxInFlight);
+         double elapsed = (System.nanoTime() - start) / 1e9;
+         System.out.println();
+         System.out.print(test.report(elapsed));
+         System.out.println();
+         System.out.print(Hotel.metrics.toText());
+      }finally{
+         if (batcher != null) {
+            batcher.close();
+            batcherConnection.cleanup();
+         }
+         for (Hotel esql : pool)
+            esql.cleanup();
+      }
+   }//end main
+
+}//end LoadTest
@@ -1,13 +1,12 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 
-export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
-export PATH=$JAVA_HOME/bin:$PATH
-
-# compile the java program
-javac -d $DIR/../classes $DIR/../src/Hotel.java
+# needs JDK 21 or later on the PATH (or JAVA_HOME) and Maven
+# build the jar and copy the PostgreSQL driver into target/lib
+mvn -q -f $DIR/../pom.xml -DskipTests package
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Hotel $USER"_DB" $PGPORT $USER
-
+#Driver settings can be tuned with -Dhotel.jdbc.<property>=<value>
+#Append --batch <file> (or --batch - for stdin) to run a command script instead of the menus
+java -jar $DIR/../target/hotel-1.0-SNAPSHOT.jar $USER"_DB" $PGPORT $USER
@@ -0,0 +1,436 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Runs a script of commands without the menus, for night audits and bulk
+ * repair requests. Consecutive commands of the same kind are collected
+ * and sent as one JDBC batch per shard, so a long script costs a round
+ * trip per batch rather than per command. A report first sends every
+ * command before it, so it sees their effect.
+ *
+ * Commands, one per line, fields separated by spaces, # starts a comment:
+ *    user <customer|manager> <password> <name>
+ *    book <customerID> <hotelID> <roomNumber> <MM/DD/YYYY>
+ *    reprice <managerID> <hotelID> <roomNumber> <price>
+ *    repair <managerID> <hotelID> <roomNumber> <companyID> [MM/DD/YYYY]
+ *    repair <managerID> <hotelID> <roomNumber> auto
+ *    report rooms <hotelID> <MM/DD/YYYY>
+ *    report recent <customerID>
+ *    report bookings <managerID> <MM/DD/YYYY> <MM/DD/YYYY>
+ *    report updates <managerID>
+ *    report customers <hotelID>
+ *    report repairs <managerID>
+ *
+ * Repairs with the company "auto" are handed to a RepairScheduler, which
+ * picks the company and the first free day for all of them in one pass.
+ *
+ * Every command gets one result line; reports are printed as tables. All
+ * output is buffered and flushed at the end.
+ *
+ * Usage: java -jar hotel.jar <dbname> <port> <user> --batch <file>|-
+ * where - reads the script from standard input.
+ *
+ * Configuration (system properties):
+ *    hotel.batch.size  commands sent per batch (default 1000)
+ *
+ */
+public class BatchRunner {
+
+   private static final DateTimeFormatter INPUT_DATE = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+
+   // The writes select their rows instead of using VALUES, so a command
+   // for an unknown customer, room or company, for a room of another
+   // manager's hotel, or for a night the room is booked or under repair,
+   // affects no rows instead of failing the whole batch.
+   // The driver only rewrites INSERT ... VALUES batches, so every command
+   // keeps its own update count.
+   private static final String BOOK =
+      "INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate) "
+      + "SELECT u.userID, r.hotelID, r.roomNumber, CAST(? AS date) FROM Users u, Rooms r "
+      + "WHERE u.userID = ? AND r.hotelID = ? AND r.roomNumber = ? "
+      + "AND NOT EXISTS (SELECT 1 FROM RoomRepairs p WHERE p.hotelID = r.hotelID AND p.roomNumber = r.roomNumber AND p.repairDate = CAST(? AS date)) "
+      + "ON CONFLICT (hotelID, roomNumber, bookingDate) DO NOTHING";
+   private static final String REPRICE =
+      "UPDATE Rooms r SET price = ? FROM Hotel h "
+      + "WHERE h.hotelID = r.hotelID AND h.managerUserID = ? AND r.hotelID = ? AND r.roomNumber = ?";
+   private static final String REPAIR =
+      "INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate) "
+      + "SELECT m.companyID, r.hotelID, r.roomNumber, CAST(? AS date) FROM MaintenanceCompany m, Rooms r, Hotel h "
+      + "WHERE m.companyID = ? AND h.hotelID = r.hotelID AND h.managerUserID = ? AND r.hotelID = ? AND r.roomNumber = ? "
+      + "AND NOT EXISTS (SELECT 1 FROM RoomBookings b WHERE b.hotelID = r.hotelID AND b.roomNumber = r.roomNumber AND b.bookingDate = CAST(? AS date))";
+
+   static class Command {
+      final int line;
+      final String text;
+      final String kind;
+      final int shard;
+      final Object[] params;
+      String result;
+
+      Command(int line, String text, String kind, int shard, Object[] params) {
+         this.line = line;
+         this.text = text;
+         this.kind = kind;
+         this.shard = shard;
+         this.params = params;
+      }
+   }//end Command
+
+   private final Hotel _esql;
+   private final TableWriter _out;
+   private final int _batchSize;
+   private final List<Command> _pending = new ArrayList<Command>();
+   private int _done = 0;
+   private int _rejected = 0;
+   private int _failed = 0;
+   private RepairScheduler _scheduler = null;
+
+   /**
+    * @param esql the connections the commands run on
+    * @param out where results and reports are written
+    * @param batchSize the most commands sent in one batch
+    */
+   public BatchRunner(Hotel esql, TableWriter out, int batchSize) {
+      this._esql = esql;
+      this._out = out;
+      this._batchSize = batchSize;
+   }//end BatchRunner
+
+   public static void main(String[] args) {
+      if (args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BatchRunner.class.getName () +
+            " <dbname> <port> <user> <file>|-");
+         return;
+      }//end if
+
+      Hotel esql = null;
+      TableWriter out = TableWriter.toStandardOutput();
+      try{
+         esql = new Hotel (args[0], args[1], args[2], "");
+         BufferedReader script = new BufferedReader(new InputStreamReader(
+            args[3].equals("-") ? System.in : new FileInputStream(args[3]), StandardCharsets.UTF_8), 1 << 16);
+         try{
+            new BatchRunner(esql, out, Integer.getInteger("hotel.batch.size", 1000)).run(script);
+         }finally{
+            script.close();
+         }
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         try{
+            out.close();
+         }catch (IOException e){
+            // ignored.
+         }
+         if (esql != null)
+            esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Runs every command of the script, then writes a summary.
+    *
+    * @param script the commands, one per line
+    * @throws java.io.IOException when the script could not be read or the output written
+    */
+   public void run(BufferedReader script) throws IOException {
+      long start = System.nanoTime();
+      int lineNumber = 0;
+      for (String line = script.readLine(); line != null; line = script.readLine()) {
+         lineNumber++;
+         int comment = line.indexOf('#');
+         String text = (comment < 0 ? line : line.substring(0, comment)).trim();
+         if (text.isEmpty())
+            continue;
+         String[] fields = text.split("\\s+");
+         try{
+            if (fields[0].equals("report")) {
+               flush();
+               report(lineNumber, fields);
+               continue;
+            }
+            Command command = parse(_esql.shardMap(), lineNumber, text, fields);
+            if (!_pending.isEmpty() && (!_pending.get(0).kind.equals(command.kind) || _pending.size() >= limit(command.kind)))
+               flush();
+            _pending.add(command);
+         }catch (IllegalArgumentException | DateTimeParseException e){
+            _failed++;
+            _out.line("line " + lineNumber + ": " + text + " -> ERROR " + e.getMessage());
+         }catch (SQLException e){
+            _failed++;
+            _out.line("line " + lineNumber + ": " + text + " -> FAILED " + e.getMessage());
+         }
+      }
+      flush();
+      _out.line(String.format("%n%d commands done, %d rejected, %d failed in %.1f s",
+         _done, _rejected, _failed, (System.nanoTime() - start) / 1e9));
+   }//end run
+
+   static Command parse(ShardMap shards, int line, String text, String[] f) {
+      if (f[0].equals("user")) {
+         // the name is the rest of the line and may contain spaces.
+         String[] user = text.split("\\s+", 4);
+         expect(user, 4, 4);
+         if (!user[1].equals("customer") && !user[1].equals("manager"))
+            throw new IllegalArgumentException("user type must be customer or manager");
+         return new Command(line, text, "user", 0, new String[] { user[3], user[2], user[1] });
+      }else if (f[0].equals("book")) {
+         expect(f, 5, 5);
+         int hotelID = id(f[2]);
+         return new Command(line, text, "book", shards.shardOf(hotelID),
+            new Object[] { date(f[4]), id(f[1]), hotelID, id(f[3]), date(f[4]) });
+      }else if (f[0].equals("reprice")) {
+         expect(f, 5, 5);
+         int hotelID = id(f[2]);
+         return new Command(line, text, "reprice", shards.shardOf(hotelID),
+            new Object[] { id(f[4]), id(f[1]), hotelID, id(f[3]) });
+      }else if (f[0].equals("repair") && f.length == 5 && f[4].equals("auto")) {
+         return new Command(line, text, "schedule", 0, new Object[] { id(f[1]), id(f[2]), id(f[3]) });
+      }else if (f[0].equals("repair")) {
+         expect(f, 5, 6);
+         int hotelID = id(f[2]);
+         java.sql.Date date = f.length == 6 ? date(f[5]) : java.sql.Date.valueOf(LocalDate.now());
+         return new Command(line, text, "repair", shards.shardOf(hotelID),
+            new Object[] { date, id(f[4]), id(f[1]), hotelID, id(f[3]), date });
+      }
+      throw new IllegalArgumentException("unknown command " + f[0]);
+   }//end parse
+
+   // sends the pending commands, one batch and transaction per shard.
+   private void flush() throws IOException {
+      if (_pending.isEmpty())
+         return;
+      String kind = _pending.get(0).kind;
+      if (kind.equals("user") || kind.equals("schedule")) {
+         _esql.setOperation(kind.equals("user") ? "batchUser" : "batchSchedule");
+         if (kind.equals("user"))
+            provision(_pending);
+         else
+            schedule(_pending);
+         for (Command command : _pending)
+            _out.line("line " + command.line + ": " + command.text + " -> " + command.result);
+         _pending.clear();
+         return;
+      }
+      String sql = kind.equals("book") ? BOOK : kind.equals("reprice") ? REPRICE : REPAIR;
+      Map<Integer, List<Command>> byShard = new TreeMap<Integer, List<Command>>();
+      for (Command command : _pending)
+         byShard.computeIfAbsent(command.shard, k -> new ArrayList<Command>()).add(command);
+      for (Map.Entry<Integer, List<Command>> shard : byShard.entrySet()) {
+         _esql.setOperation("batch" + Character.toUpperCase(kind.charAt(0)) + kind.substring(1));
+         _esql.useShard(shard.getKey().intValue());
+         send(sql, shard.getValue());
+      }
+      for (Command command : _pending)
+         _out.line("line " + command.line + ": " + command.text + " -> " + command.result);
+      _pending.clear();
+   }//end flush
+
+   // if the batch fails as a whole, each command is retried on its own so
+   // only the failing ones are reported.
+   private void send(final String sql, List<Command> commands) {
+      final List<Object[]> rows = new ArrayList<Object[]>(commands.size());
+      for (Command command : commands)
+         rows.add(command.params);
+      try{
+         int[] counts = _esql.inTransaction(Hotel.Isolation.READ_COMMITTED, tx -> tx.executeBatch(sql, rows));
+         for (int i = 0; i < commands.size(); i++)
+            complete(commands.get(i), counts[i]);
+      }catch (SQLException e){
+         for (Command command : commands) {
+            try{
+               complete(command, _esql.executeUpdate(sql, command.params));
+            }catch (SQLException single){
+               _failed++;
+               command.result = "FAILED " + single.getMessage();
+            }
+         }
+      }
+   }//end send
+
+   // every user of the batch is created by one createUsers call, which
+   // creates all of them on every shard or none of them anywhere, so the
+   // fallback can retry each user on its own without duplicating any.
+   private void provision(List<Command> commands) {
+      List<String[]> users = new ArrayList<String[]>(commands.size());
+      for (Command command : commands)
+         users.add((String[]) command.params);
+      try{
+         int[] userIDs = Hotel.createUsers(_esql, users);
+         for (int i = 0; i < commands.size(); i++)
+            created(commands.get(i), userIDs[i]);
+      }catch (SQLException e){
+         for (Command command : commands) {
+            String[] user = (String[]) command.params;
+            try{
+               created(command, Hotel.createUser(_esql, user[0], user[1], user[2]));
+            }catch (SQLException single){
+               _failed++;
+               command.result = "FAILED " + single.getMessage();
+            }
+         }
+      }
+   }//end provision
+
+   // repairs of rooms the manager does not manage are rejected, the rest
+   // are scheduled together.
+   private void schedule(List<Command> commands) {
+      try{
+         Set<Integer> hotels = new TreeSet<Integer>();
+         for (Command command : commands)
+            hotels.add((Integer) command.params[1]);
+         Map<Integer, Integer> managers = new HashMap<Integer, Integer>();
+         for (List<String> row : _esql.executeQueryAndReturnResult("SELECT hotelID, managerUserID FROM Hotel WHERE hotelID = ANY(CAST(? AS integer[]))",
+               (Object) hotels.toArray(new Integer[0])))
+            managers.put(Integer.valueOf(row.get(0)), Integer.valueOf(row.get(1)));
+
+         List<RepairScheduler.Request> requests = new ArrayList<RepairScheduler.Request>();
+         Map<String, List<Command>> byRoom = new HashMap<String, List<Command>>();
+         for (Command command : commands) {
+            if (!command.params[0].equals(managers.get(command.params[1]))) {
+               _rejected++;
+               command.result = "REJECTED not a room of a hotel you manage";
+               continue;
+            }
+            requests.add(new RepairScheduler.Request((Integer) command.params[1], (Integer) command.params[2]));
+            byRoom.computeIfAbsent(command.params[1] + ":" + command.params[2], k -> new ArrayList<Command>()).add(command);
+         }
+         if (_scheduler == null)
+            _scheduler = RepairScheduler.fromSystemProperties(_esql, LocalDate.now());
+         RepairScheduler.Result result = _scheduler.schedule(requests);
+         // each placed repair answers the oldest command for its room
+         for (List<String> row : result.scheduled) {
+            Command command = byRoom.get(row.get(2) + ":" + row.get(3)).remove(0);
+            _done++;
+            command.result = "SCHEDULED repairID " + row.get(0) + " with company " + row.get(1) + " on " + row.get(4);
+         }
+         for (RepairScheduler.Request request : result.failed) {
+            Command command = byRoom.get(request.hotelID + ":" + request.roomNumber).remove(0);
+            _failed++;
+            command.result = "FAILED " + result.error.getMessage();
+         }
+         for (List<Command> left : byRoom.values()) {
+            for (Command command : left) {
+               _rejected++;
+               command.result = "REJECTED unknown room, or no company free within the horizon";
+            }
+         }
+      }catch (SQLException e){
+         for (Command command : commands) {
+            if (command.result == null) {
+               _failed++;
+               command.result = "FAILED " + e.getMessage();
+            }
+         }
+      }
+   }//end schedule
+
+   private void created(Command command, int userID) {
+      _done++;
+      command.result = "CREATED userID " + userID;
+   }//end created
+
+   private void complete(Command command, int count) {
+      if (count > 0) {
+         _done++;
+         command.result = command.kind.equals("book") ? "BOOKED" : command.kind.equals("reprice") ? "UPDATED" : "PLACED";
+      }else {
+         _rejected++;
+         command.result = command.kind.equals("book")
+            ? "REJECTED room taken or under repair, or unknown customer or room"
+            : "REJECTED not a room of a hotel you manage" + (command.kind.equals("repair") ? ", or unknown company, or the room is booked that night" : "");
+      }
+   }//end complete
+
+   private void report(int line, String[] f) throws SQLException, IOException {
+      if (f.length < 2)
+         throw new IllegalArgumentException("report needs a name");
+      List<List<String>> rows;
+      TableWriter.Table table;
+      if (f[1].equals("rooms")) {
+         expect(f, 4, 4);
+         _esql.setOperation("viewRooms");
+         rows = Hotel.availableRooms(_esql, String.valueOf(id(f[2])), date(f[3]).toString());
+         table = _out.table("Available Rooms", new String[] { "Hotel ID", "Room Number", "Price", "Image URL" },
+            new int[] { 8, 11, 7, 30 });
+      }else if (f[1].equals("recent")) {
+         expect(f, 3, 3);
+         _esql.setOperation("viewRecentBookingsfromCustomer");
+         rows = Hotel.recentBookings(_esql, String.valueOf(id(f[2])));
+         table = _out.table("Last 5 Recent Bookings", new String[] { "Booking ID", "Hotel ID", "Room Number", "Booking Date", "Price" },
+            new int[] { 10, 8, 11, 12, 7 });
+      }else if (f[1].equals("bookings")) {
+         expect(f, 5, 5);
+         _esql.setOperation("viewBookingHistoryofHotel");
+         rows = Hotel.bookingHistory(_esql, String.valueOf(id(f[2])), date(f[3]).toString(), date(f[4]).toString());
+         table = _out.table("Booking History", new String[] { "Booking ID", "Customer Name", "Hotel ID", "Room Number", "Booking Date", "Price" },
+            new int[] { 10, 50, 8, 11, 12, 7 });
+      }else if (f[1].equals("updates")) {
+         expect(f, 3, 3);
+         _esql.setOperation("viewRecentUpdates");
+         rows = Hotel.recentUpdates(_esql, String.valueOf(id(f[2])));
+         table = _out.table("Last 5 Recent Updates", new String[] { "Update Number", "Manager ID", "Hotel ID", "Room Number", "Updated On" },
+            new int[] { 13, 10, 8, 11, 19 });
+      }else if (f[1].equals("customers")) {
+         expect(f, 3, 3);
+         _esql.setOperation("viewRegularCustomers");
+         rows = Hotel.regularCustomers(_esql, String.valueOf(id(f[2])));
+         table = _out.table("Regular Customers", new String[] { "User ID", "Name", "Bookings" },
+            new int[] { 7, 50, 8 });
+      }else if (f[1].equals("repairs")) {
+         expect(f, 3, 3);
+         _esql.setOperation("viewRoomRepairHistory");
+         rows = Hotel.repairHistory(_esql, String.valueOf(id(f[2])));
+         table = _out.table("Repair History", new String[] { "Repair ID", "Company ID", "Hotel ID", "Room Number", "Repair Date" },
+            new int[] { 9, 10, 8, 11, 11 });
+      }else {
+         throw new IllegalArgumentException("unknown report " + f[1]);
+      }
+      for (List<String> row : rows)
+         table.row(row);
+      table.end();
+      _done++;
+      _out.line("line " + line + ": report " + f[1] + " -> " + rows.size() + " rows");
+   }//end report
+
+   // users are created by Hotel.createUsers, which commits each of its
+   // batches separately, so a user batch must fit in one of them.
+   private int limit(String kind) {
+      return kind.equals("user") ? Math.min(_batchSize, Hotel.PROVISION_BATCH) : _batchSize;
+   }//end limit
+
+   private static void expect(String[] f, int min, int max) {
+      if (f.length < min || f.length > max)
+         throw new IllegalArgumentException("wrong number of fields, see the usage of " + (f[0].equals("report") ? "report " + f[1] : f[0]));
+   }//end expect
+
+   private static int id(String value) {
+      try{
+         return Integer.parseInt(value);
+      }catch (NumberFormatException e){
+         throw new IllegalArgumentException("not a number: " + value);
+      }
+   }//end id
+
+   private static java.sql.Date date(String value) {
+      return java.sql.Date.valueOf(LocalDate.parse(value, INPUT_DATE));
+   }//end date
+
+}//end BatchRunner
@@ -0,0 +1,259 @@
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Group-commit pipeline for booking ingestion. Concurrent callers submit
+ * bookings into a bounded queue; a single writer thread drains it into
+ * multi-row INSERT ... ON CONFLICT DO NOTHING statements, so a whole batch
+ * shares one commit. Each caller gets its own result through a future.
+ *
+ * A batch is sent when it reaches the batch size or when the linger time
+ * has passed since its first booking, whichever comes first. The writer
+ * owns the Hotel it is given, which must not be used by anyone else.
+ * Every future is completed, exceptionally if the writer hit an unexpected
+ * error; bookings submitted after close are rejected.
+ *
+ * Used by the bookRoomsBatched operation of bench/LoadTest.
+ *
+ */
+public class BookingBatcher implements AutoCloseable {
+
+   private static final DateTimeFormatter INPUT_DATE = DateTimeFormatter.ofPattern("MM/dd/yyyy");
+
+   // a statement binds at most 65535 parameters and every booking takes 4.
+   static final int MAX_BATCH = 65535 / 4;
+
+   /**
+    * The outcome of one submitted booking.
+    */
+   public static class Result {
+      public enum Status { BOOKED, CONFLICT, FAILED }
+
+      public final Status status;
+      public final int bookingID;
+      public final String message;
+
+      Result(Status status, int bookingID, String message) {
+         this.status = status;
+         this.bookingID = bookingID;
+         this.message = message;
+      }
+
+      public String toString() {
+         return status == Status.BOOKED ? "BOOKED " + bookingID : status + " " + message;
+      }
+   }//end Result
+
+   private static class Request {
+      final int customerID;
+      final int hotelID;
+      final int roomNumber;
+      final LocalDate date;
+      final CompletableFuture<Result> future = new CompletableFuture<Result>();
+
+      Request(int customerID, int hotelID, int roomNumber, LocalDate date) {
+         this.customerID = customerID;
+         this.hotelID = hotelID;
+         this.roomNumber = roomNumber;
+         this.date = date;
+      }
+
+      String slot() {
+         return hotelID + ":" + roomNumber + ":" + date;
+      }
+   }//end Request
+
+   private final Hotel _esql;
+   private final int _maxBatch;
+   private final long _lingerNanos;
+   private final BlockingQueue<Request> _queue;
+   private final Thread _writer;
+   private volatile boolean _running = true;
+
+   // submit holds the read lock while enqueueing and close takes the write
+   // lock to stop, so nothing is enqueued once the writer may have finished.
+   private final ReadWriteLock _closing = new ReentrantReadWriteLock();
+
+   /**
+    * Starts the writer thread.
+    *
+    * @param esql a Hotel with a connection used only by this pipeline
+    * @param maxBatch the most bookings sent in one statement, from 1 to MAX_BATCH
+    * @param lingerMillis how long a batch waits for more bookings
+    * @param queueCapacity the most bookings waiting; submit blocks beyond it
+    */
+   public BookingBatcher(Hotel esql, int maxBatch, long lingerMillis, int queueCapacity) {
+      if (maxBatch < 1 || maxBatch > MAX_BATCH)
+         throw new IllegalArgumentException("maxBatch must be between 1 and " + MAX_BATCH + ", was " + maxBatch);
+      this._esql = esql;
+      this._maxBatch = maxBatch;
+      this._lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+      this._queue = new ArrayBlockingQueue<Request>(queueCapacity);
+      this._writer = new Thread(this::drain, "booking-batcher");
+      this._writer.setDaemon(true);
+      this._writer.start();
+   }//end BookingBatcher
+
+   /**
+    * Queues one booking, blocking while the queue is full.
+    *
+    * @param customerID the customer making the booking
+    * @param hotelID the hotel of the room
+    * @param roomNumber the room to book
+    * @param date the night booked, as MM/DD/YYYY
+    * @return a future completed once the booking's batch has committed
+    * @throws InterruptedException when interrupted while the queue is full
+    */
+   public CompletableFuture<Result> submit(int customerID, int hotelID, int roomNumber, String date) throws InterruptedException {
+      Request request = new Request(customerID, hotelID, roomNumber, LocalDate.parse(date, INPUT_DATE));
+      _closing.readLock().lockInterruptibly();
+      try{
+         if (!_running)
+            throw new IllegalStateException("BookingBatcher is closed");
+         _queue.put(request);
+      }finally{
+         _closing.readLock().unlock();
+      }
+      return request.future;
+   }//end submit
+
+   /**
+    * Flushes every queued booking and stops the writer thread. If the
+    * calling thread is interrupted, it still waits and keeps its interrupt
+    * status.
+    */
+   public void close() {
+      _closing.writeLock().lock();
+      try{
+         _running = false;
+      }finally{
+         _closing.writeLock().unlock();
+      }
+      boolean interrupted = false;
+      while (_writer.isAlive()) {
+         try{
+            _writer.join();
+         }catch (InterruptedException e){
+            interrupted = true;
+         }
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+   }//end close
+
+   private void drain() {
+      List<Request> batch = new ArrayList<Request>(_maxBatch);
+      while (_running || !_queue.isEmpty()) {
+         Throwable failure = null;
+         try{
+            Request first = _queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null)
+               continue;
+            batch.add(first);
+            long deadline = System.nanoTime() + _lingerNanos;
+            while (batch.size() < _maxBatch) {
+               long remaining = deadline - System.nanoTime();
+               Request next = remaining > 0 ? _queue.poll(remaining, TimeUnit.NANOSECONDS) : _queue.poll();
+               if (next == null)
+                  break;
+               batch.add(next);
+            }
+            _esql.setOperation("bookRoomsBatch");
+            flushByShard(batch);
+         }catch (Throwable e){
+            // e.g. a broken connection or an interrupt; only close stops the
+            // writer, so the queue keeps being served
+            failure = e;
+         }finally{
+            for (Request request : batch) {
+               if (!request.future.isDone())
+                  request.future.completeExceptionally(failure != null ? failure
+                     : new IllegalStateException("Booking was not sent"));
+            }
+            batch.clear();
+         }
+      }
+   }//end drain
+
+   // with sharding, each shard gets its own statement and commit.
+   private void flushByShard(List<Request> batch) {
+      if (_esql.shardCount() == 1) {
+         flush(batch);
+         return;
+      }
+      _esql.refreshPlacements();
+      Map<Integer, List<Request>> byShard = new TreeMap<Integer, List<Request>>();
+      for (Request request : batch)
+         byShard.computeIfAbsent(_esql.shardMap().shardOf(request.hotelID), k -> new ArrayList<Request>()).add(request);
+      for (Map.Entry<Integer, List<Request>> shard : byShard.entrySet()) {
+         _esql.useShard(shard.getKey().intValue());
+         flush(shard.getValue());
+      }
+   }//end flushByShard
+
+   // sends the batch as one statement, falling back to one row at a time
+   // if the statement fails as a whole (e.g. an unknown room).
+   private void flush(List<Request> batch) {
+      try{
+         complete(batch, insert(batch));
+      }catch (SQLException e){
+         if (batch.size() == 1) {
+            // the checkRoomRepair trigger reports a night under repair as a unique_violation
+            Result.Status status = "23505".equals(e.getSQLState()) ? Result.Status.CONFLICT : Result.Status.FAILED;
+            batch.get(0).future.complete(new Result(status, -1, e.getMessage()));
+            return;
+         }
+         for (Request request : batch) {
+            List<Request> single = new ArrayList<Request>(1);
+            single.add(request);
+            flush(single);
+         }
+      }
+   }//end flush
+
+   private List<List<String>> insert(List<Request> batch) throws SQLException {
+      StringBuilder sql = new StringBuilder("INSERT INTO RoomBookings(customerID, hotelID, roomNumber, bookingDate) VALUES ");
+      Object[] params = new Object[batch.size() * 4];
+      int p = 0;
+      for (int i = 0; i < batch.size(); i++) {
+         Request request = batch.get(i);
+         sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+         params[p++] = Integer.valueOf(request.customerID);
+         params[p++] = Integer.valueOf(request.hotelID);
+         params[p++] = Integer.valueOf(request.roomNumber);
+         params[p++] = java.sql.Date.valueOf(request.date);
+      }
+      sql.append(" ON CONFLICT (hotelID, roomNumber, bookingDate) DO NOTHING");
+      sql.append(" RETURNING bookingID, hotelID, roomNumber, to_char(bookingDate, 'YYYY-MM-DD')");
+      return _esql.executeQueryAndReturnResult(sql.toString(), params);
+   }//end insert
+
+   // hands each caller its booking ID, or a conflict if its slot was taken,
+   // including by an earlier booking for the same slot in this batch.
+   private static void complete(List<Request> batch, List<List<String>> inserted) {
+      Map<String, Integer> booked = new HashMap<String, Integer>();
+      for (List<String> row : inserted)
+         booked.put(row.get(1) + ":" + row.get(2) + ":" + row.get(3), Integer.valueOf(row.get(0)));
+      for (Request request : batch) {
+         Integer bookingID = booked.remove(request.slot());
+         if (bookingID != null)
+            request.future.complete(new Result(Result.Status.BOOKED, bookingID.intValue(), null));
+         else
+            request.future.complete(new Result(Result.Status.CONFLICT, -1,
+               String.format("Room %d at Hotel ID %d is not available on %s", request.roomNumber, request.hotelID, request.date)));
+      }
+   }//end complete
+
+}//end BookingBatcher
@@ -0,0 +1,466 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Exports the full booking history, joined with the room price, hotel name
+ * and customer name, to a compressed columnar file that
+ * BookingExportReader reads back.
+ *
+ * RoomBookings is split into bookingID ranges on every shard. Worker
+ * threads, each with its own connections, stream the ranges through
+ * server-side cursors and encode them into row groups of a fixed number of
+ * rows, so memory use is bounded by threads times the row group size
+ * whatever the table size. Every range reads the same snapshot of its
+ * shard, exported by a coordinating transaction that stays open for the
+ * whole export, so the file is consistent even while bookings continue.
+ *
+ * File layout: the magic "HBX1", then the row groups, then a footer with
+ * the column names and each row group's offset, row count, bookingID
+ * range and per-column compressed lengths, then the footer length and the
+ * magic again. Each column of a row group is deflated on its own:
+ *    bookingID    delta-encoded zigzag varints
+ *    customer     dictionary of (userID, name), then a varint index per row
+ *    hotel        dictionary of (hotelID, hotelName), then a varint index per row
+ *    roomNumber   zigzag varints
+ *    price        zigzag varints
+ *    bookingDate  delta-encoded zigzag varints of the epoch day
+ *
+ * Usage: java BookingExport <dbname> <port> <user> <file>
+ * with the same -Dhotel.shards as the clients.
+ *
+ * Configuration (system properties):
+ *    hotel.export.threads      ranges read at the same time (default 4)
+ *    hotel.export.chunkSize    bookingIDs per range (default 1000000)
+ *    hotel.export.fetchSize    rows per cursor fetch (default 10000)
+ *    hotel.export.rowGroup     rows per row group (default 65536)
+ *    hotel.export.compression  Deflater level 0-9 (default 1)
+ *
+ */
+public class BookingExport {
+
+   static final byte[] MAGIC = "HBX1".getBytes(StandardCharsets.US_ASCII);
+   static final String[] COLUMNS = { "bookingID", "customer", "hotel", "roomNumber", "price", "bookingDate" };
+
+   private static final String CHUNK_QUERY =
+      "SELECT b.bookingID, b.customerID, trim(u.name), b.hotelID, trim(h.hotelName), b.roomNumber, r.price, "
+      + "b.bookingDate - DATE '1970-01-01' "
+      + "FROM RoomBookings b JOIN Rooms r ON r.hotelID = b.hotelID AND r.roomNumber = b.roomNumber "
+      + "JOIN Hotel h ON h.hotelID = b.hotelID JOIN Users u ON u.userID = b.customerID "
+      + "WHERE b.bookingID >= ? AND b.bookingID < ? ORDER BY b.bookingID";
+
+   /**
+    * The decoded rows of one row group, one array per column.
+    */
+   public static class RowGroup {
+      public final int size;
+      public final int[] bookingID;
+      public final int[] customerID;
+      public final String[] customerName;
+      public final int[] hotelID;
+      public final String[] hotelName;
+      public final int[] roomNumber;
+      public final int[] price;
+      public final int[] bookingDay;
+
+      RowGroup(int capacity) {
+         this(0, capacity);
+      }
+
+      RowGroup(int size, int capacity) {
+         this.size = size;
+         this.bookingID = new int[capacity];
+         this.customerID = new int[capacity];
+         this.customerName = new String[capacity];
+         this.hotelID = new int[capacity];
+         this.hotelName = new String[capacity];
+         this.roomNumber = new int[capacity];
+         this.price = new int[capacity];
+         this.bookingDay = new int[capacity];
+      }
+   }//end RowGroup
+
+   // where a row group was written, kept for the footer.
+   private static class GroupEntry {
+      final long offset;
+      final int rows;
+      final int minBookingID;
+      final int maxBookingID;
+      final int[] lengths;
+
+      GroupEntry(long offset, int rows, int minBookingID, int maxBookingID, int[] lengths) {
+         this.offset = offset;
+         this.rows = rows;
+         this.minBookingID = minBookingID;
+         this.maxBookingID = maxBookingID;
+         this.lengths = lengths;
+      }
+   }//end GroupEntry
+
+   private static class Chunk {
+      final int shard;
+      final long from;
+      final long to;
+
+      Chunk(int shard, long from, long to) {
+         this.shard = shard;
+         this.from = from;
+         this.to = to;
+      }
+   }//end Chunk
+
+   private final RandomAccessFile _out;
+   private final List<GroupEntry> _groups = new ArrayList<GroupEntry>();
+   private final int _rowGroup;
+   private final int _fetchSize;
+   private final int _level;
+
+   private BookingExport(RandomAccessFile out, int rowGroup, int fetchSize, int level) {
+      this._out = out;
+      this._rowGroup = rowGroup;
+      this._fetchSize = fetchSize;
+      this._level = level;
+   }//end BookingExport
+
+   /**
+    * Starts a file: writes the leading magic and returns an encoder that
+    * appends row groups to it.
+    *
+    * @param out the file, truncated first
+    * @param rowGroup rows per row group
+    * @param fetchSize rows per cursor fetch
+    * @param level the Deflater level
+    * @return the encoder
+    * @throws java.io.IOException when writing failed
+    */
+   static BookingExport start(RandomAccessFile out, int rowGroup, int fetchSize, int level) throws IOException {
+      out.setLength(0);
+      out.write(MAGIC);
+      return new BookingExport(out, rowGroup, fetchSize, level);
+   }//end start
+
+   public static void main(String[] args) {
+      if (args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BookingExport.class.getName () +
+            " <dbname> <port> <user> <file>");
+         return;
+      }//end if
+
+      int threads = Integer.getInteger("hotel.export.threads", 4);
+      List<Hotel> workers = new ArrayList<Hotel>();
+      Hotel esql = null;
+      try{
+         esql = new Hotel (args[0], args[1], args[2], "");
+         for (int i = 0; i < threads; i++)
+            workers.add(new Hotel (args[0], args[1], args[2], ""));
+         long start = System.nanoTime();
+         long rows = export(esql, workers, args[3]);
+         double seconds = (System.nanoTime() - start) / 1e9;
+         System.out.printf("Exported %d bookings to %s in %.1f s (%d bytes)%n",
+            rows, args[3], seconds, new File(args[3]).length());
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         for (Hotel worker : workers)
+            worker.cleanup();
+         if (esql != null)
+            esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Writes every booking of every shard to the given file. The file is
+    * written under a temporary name and renamed once complete.
+    *
+    * @param esql a Hotel whose connections hold the exported snapshots
+    * @param workers one Hotel per worker thread, used only by the export
+    * @param path the file to write
+    * @return the number of bookings exported
+    * @throws Exception when reading or writing failed; no file is left behind
+    */
+   public static long export(Hotel esql, List<Hotel> workers, String path) throws Exception {
+      File target = new File(path);
+      File partial = new File(path + ".partial");
+      long chunkSize = Long.getLong("hotel.export.chunkSize", 1000000L);
+      String[] snapshots = new String[esql.shardCount()];
+      final ConcurrentLinkedQueue<Chunk> chunks = new ConcurrentLinkedQueue<Chunk>();
+      ExecutorService pool = Executors.newFixedThreadPool(workers.size());
+      RandomAccessFile out = new RandomAccessFile(partial, "rw");
+      boolean done = false;
+      try{
+         final BookingExport export = start(out,
+            Integer.getInteger("hotel.export.rowGroup", 65536),
+            Integer.getInteger("hotel.export.fetchSize", 10000),
+            Integer.getInteger("hotel.export.compression", 1));
+
+         // the coordinating transactions pin one snapshot per shard.
+         for (int shard = 0; shard < esql.shardCount(); shard++) {
+            Connection conn = esql.shardRouter(shard).primary();
+            conn.setAutoCommit(false);
+            Statement stmt = conn.createStatement();
+            try{
+               stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ READ ONLY");
+               ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot(), MIN(bookingID), MAX(bookingID) FROM RoomBookings");
+               rs.next();
+               snapshots[shard] = rs.getString(1);
+               long min = rs.getLong(2);
+               if (rs.wasNull())
+                  continue;
+               long max = rs.getLong(3);
+               for (long from = min; from <= max; from += chunkSize)
+                  chunks.add(new Chunk(shard, from, Math.min(from + chunkSize, max + 1)));
+            }finally{
+               stmt.close();
+            }
+         }
+
+         List<Future<Long>> results = new ArrayList<Future<Long>>();
+         for (final Hotel worker : workers) {
+            final String[] snapshotIDs = snapshots;
+            results.add(pool.submit(() -> {
+               long rows = 0;
+               for (Chunk chunk = chunks.poll(); chunk != null; chunk = chunks.poll())
+                  rows += export.readChunk(worker, chunk, snapshotIDs[chunk.shard]);
+               return Long.valueOf(rows);
+            }));
+         }
+         long total = 0;
+         for (Future<Long> result : results)
+            total += result.get().longValue();
+         export.writeFooter();
+         done = true;
+         return total;
+      }finally{
+         // every step runs whatever the others did, and none of them
+         // replaces the export's own error.
+         chunks.clear();
+         pool.shutdownNow();
+         try{
+            // workers still writing would race the close below
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+         }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+         }
+         for (int shard = 0; shard < esql.shardCount(); shard++) {
+            Connection conn = esql.shardRouter(shard).primary();
+            try{
+               // shards after a failed setup are still in autocommit
+               if (!conn.getAutoCommit()) {
+                  conn.rollback();
+                  conn.setAutoCommit(true);
+               }
+            }catch (SQLException e){
+               // the snapshot ends with the connection
+            }
+         }
+         IOException closeError = null;
+         try{
+            out.close();
+         }catch (IOException e){
+            closeError = e;
+         }
+         if (!done || closeError != null)
+            partial.delete();
+         if (done && closeError != null)
+            throw closeError;
+         if (done && !partial.renameTo(target))
+            throw new IOException("Could not rename " + partial + " to " + target);
+      }
+   }//end export
+
+   // streams one bookingID range in the shard's exported snapshot.
+   private long readChunk(Hotel worker, Chunk chunk, String snapshot) throws SQLException, IOException {
+      long start = System.nanoTime();
+      boolean ok = false;
+      int rows = 0;
+      Connection conn = worker.shardRouter(chunk.shard).primary();
+      conn.setAutoCommit(false);
+      PreparedStatement stmt = null;
+      try{
+         Statement setup = conn.createStatement();
+         try{
+            setup.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ READ ONLY");
+            setup.execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+         }finally{
+            setup.close();
+         }
+         stmt = conn.prepareStatement(CHUNK_QUERY);
+         stmt.setFetchSize(_fetchSize);
+         stmt.setLong(1, chunk.from);
+         stmt.setLong(2, chunk.to);
+         ResultSet rs = stmt.executeQuery();
+         RowGroup group = new RowGroup(_rowGroup);
+         int n = 0;
+         while (rs.next()) {
+            group.bookingID[n] = rs.getInt(1);
+            group.customerID[n] = rs.getInt(2);
+            group.customerName[n] = rs.getString(3);
+            group.hotelID[n] = rs.getInt(4);
+            group.hotelName[n] = rs.getString(5);
+            group.roomNumber[n] = rs.getInt(6);
+            group.price[n] = rs.getInt(7);
+            group.bookingDay[n] = rs.getInt(8);
+            rows++;
+            if (++n == _rowGroup) {
+               write(group, n);
+               n = 0;
+            }
+         }
+         if (n > 0)
+            write(group, n);
+         ok = true;
+      }finally{
+         if (stmt != null)
+            stmt.close();
+         conn.rollback();
+         conn.setAutoCommit(true);
+         Hotel.metrics.record("exportBookings", System.nanoTime() - start, rows, ok);
+      }
+      return rows;
+   }//end readChunk
+
+   // encodes and compresses the columns on the calling thread, then appends them.
+   void write(RowGroup group, int rows) throws IOException {
+      byte[][] columns = new byte[COLUMNS.length][];
+      Deflater deflater = new Deflater(_level);
+      try{
+         columns[0] = compress(deflater, encodeDeltas(group.bookingID, rows));
+         columns[1] = compress(deflater, encodeDictionary(group.customerID, group.customerName, rows));
+         columns[2] = compress(deflater, encodeDictionary(group.hotelID, group.hotelName, rows));
+         columns[3] = compress(deflater, encodeValues(group.roomNumber, rows));
+         columns[4] = compress(deflater, encodeValues(group.price, rows));
+         columns[5] = compress(deflater, encodeDeltas(group.bookingDay, rows));
+      }finally{
+         deflater.end();
+      }
+      int[] lengths = new int[columns.length];
+      for (int i = 0; i < columns.length; i++)
+         lengths[i] = columns[i].length;
+      synchronized (this) {
+         long offset = _out.getFilePointer();
+         for (byte[] column : columns)
+            _out.write(column);
+         _groups.add(new GroupEntry(offset, rows, group.bookingID[0], group.bookingID[rows - 1], lengths));
+      }
+   }//end write
+
+   // row groups are listed in bookingID order whatever order they were written in.
+   synchronized void writeFooter() throws IOException {
+      Collections.sort(_groups, new Comparator<GroupEntry>() {
+         public int compare(GroupEntry a, GroupEntry b) {
+            return Integer.compare(a.minBookingID, b.minBookingID);
+         }
+      });
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream footer = new DataOutputStream(bytes);
+      footer.writeInt(COLUMNS.length);
+      for (String column : COLUMNS)
+         footer.writeUTF(column);
+      footer.writeInt(_groups.size());
+      for (GroupEntry group : _groups) {
+         footer.writeLong(group.offset);
+         footer.writeInt(group.rows);
+         footer.writeInt(group.minBookingID);
+         footer.writeInt(group.maxBookingID);
+         for (int length : group.lengths)
+            footer.writeInt(length);
+      }
+      footer.flush();
+      _out.write(bytes.toByteArray());
+      _out.writeInt(bytes.size());
+      _out.write(MAGIC);
+   }//end writeFooter
+
+   private static byte[] encodeValues(int[] values, int rows) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(rows * 2);
+      for (int i = 0; i < rows; i++)
+         writeVarint(out, zigzag(values[i]));
+      return out.toByteArray();
+   }//end encodeValues
+
+   private static byte[] encodeDeltas(int[] values, int rows) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(rows * 2);
+      int previous = 0;
+      for (int i = 0; i < rows; i++) {
+         writeVarint(out, zigzag(values[i] - previous));
+         previous = values[i];
+      }
+      return out.toByteArray();
+   }//end encodeDeltas
+
+   // the dictionary holds each distinct ID once, with its name, in order of
+   // first appearance; the rows are indexes into it.
+   private static byte[] encodeDictionary(int[] ids, String[] names, int rows) {
+      Map<Integer, Integer> index = new HashMap<Integer, Integer>();
+      ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+      ByteArrayOutputStream indexes = new ByteArrayOutputStream(rows);
+      int previous = 0;
+      for (int i = 0; i < rows; i++) {
+         Integer entry = index.get(Integer.valueOf(ids[i]));
+         if (entry == null) {
+            entry = Integer.valueOf(index.size());
+            index.put(Integer.valueOf(ids[i]), entry);
+            writeVarint(dictionary, zigzag(ids[i] - previous));
+            previous = ids[i];
+            byte[] name = (names[i] == null ? "" : names[i]).getBytes(StandardCharsets.UTF_8);
+            writeVarint(dictionary, name.length);
+            dictionary.write(name, 0, name.length);
+         }
+         writeVarint(indexes, entry.intValue());
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream(dictionary.size() + indexes.size() + 5);
+      writeVarint(out, index.size());
+      out.write(dictionary.toByteArray(), 0, dictionary.size());
+      out.write(indexes.toByteArray(), 0, indexes.size());
+      return out.toByteArray();
+   }//end encodeDictionary
+
+   private static byte[] compress(Deflater deflater, byte[] data) {
+      deflater.reset();
+      deflater.setInput(data);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+         int n = deflater.deflate(buffer);
+         out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+   }//end compress
+
+   static int zigzag(int value) {
+      return (value << 1) ^ (value >> 31);
+   }//end zigzag
+
+   static void writeVarint(ByteArrayOutputStream out, int value) {
+      while ((value & ~0x7F) != 0) {
+         out.write((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      out.write(value);
+   }//end writeVarint
+
+}//end BookingExport
@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the files written by BookingExport one row group at a time, so a
+ * file of any size can be processed in the memory of a single row group.
+ *
+ * Usage: java BookingExportReader <file> [--csv]
+ * prints a summary of the file, or with --csv every booking as CSV.
+ *
+ */
+public class BookingExportReader implements AutoCloseable {
+
+   private final RandomAccessFile _in;
+   private final String[] _columns;
+   private final long[] _offsets;
+   private final int[] _rows;
+   private final int[] _minBookingID;
+   private final int[] _maxBookingID;
+   private final int[][] _lengths;
+
+   /**
+    * Opens the file and reads its footer.
+    *
+    * @param path a file written by BookingExport
+    * @throws java.io.IOException when the file could not be read or is not an export
+    */
+   public BookingExportReader(String path) throws IOException {
+      this._in = new RandomAccessFile(path, "r");
+      try{
+         long length = _in.length();
+         byte[] magic = new byte[4];
+         _in.seek(length - 4);
+         _in.readFully(magic);
+         if (length < 16 || !Arrays.equals(magic, BookingExport.MAGIC))
+            throw new IOException(path + " is not a complete booking export");
+         _in.seek(length - 8);
+         int footerLength = _in.readInt();
+         _in.seek(length - 8 - footerLength);
+         this._columns = new String[_in.readInt()];
+         for (int i = 0; i < _columns.length; i++)
+            _columns[i] = _in.readUTF();
+         if (!Arrays.equals(_columns, BookingExport.COLUMNS))
+            throw new IOException(path + " has unknown columns " + Arrays.toString(_columns));
+         int groups = _in.readInt();
+         this._offsets = new long[groups];
+         this._rows = new int[groups];
+         this._minBookingID = new int[groups];
+         this._maxBookingID = new int[groups];
+         this._lengths = new int[groups][_columns.length];
+         for (int g = 0; g < groups; g++) {
+            _offsets[g] = _in.readLong();
+            _rows[g] = _in.readInt();
+            _minBookingID[g] = _in.readInt();
+            _maxBookingID[g] = _in.readInt();
+            for (int c = 0; c < _columns.length; c++)
+               _lengths[g][c] = _in.readInt();
+         }
+      }catch (IOException e){
+         _in.close();
+         throw e;
+      }
+   }//end BookingExportReader
+
+   /**
+    * @return the number of row groups, in bookingID order
+    */
+   public int groupCount() {
+      return _rows.length;
+   }//end groupCount
+
+   /**
+    * @return the number of bookings in the file
+    */
+   public long rowCount() {
+      long total = 0;
+      for (int rows : _rows)
+         total += rows;
+      return total;
+   }//end rowCount
+
+   /**
+    * @param group a row group index
+    * @return the smallest and largest bookingID in that row group
+    */
+   public int[] bookingIDRange(int group) {
+      return new int[] { _minBookingID[group], _maxBookingID[group] };
+   }//end bookingIDRange
+
+   /**
+    * Reads and decodes one row group.
+    *
+    * @param group a row group index
+    * @return its rows
+    * @throws java.io.IOException when the row group could not be read or decoded
+    */
+   public BookingExport.RowGroup read(int group) throws IOException {
+      int rows = _rows[group];
+      BookingExport.RowGroup result = new BookingExport.RowGroup(rows, rows);
+      _in.seek(_offsets[group]);
+      Inflater inflater = new Inflater();
+      try{
+         decodeDeltas(column(inflater, group, 0), result.bookingID, rows);
+         decodeDictionary(column(inflater, group, 1), result.customerID, result.customerName, rows);
+         decodeDictionary(column(inflater, group, 2), result.hotelID, result.hotelName, rows);
+         decodeValues(column(inflater, group, 3), result.roomNumber, rows);
+         decodeValues(column(inflater, group, 4), result.price, rows);
+         decodeDeltas(column(inflater, group, 5), result.bookingDay, rows);
+      }catch (DataFormatException e){
+         throw new IOException("Row group " + group + " is corrupt", e);
+      }finally{
+         inflater.end();
+      }
+      return result;
+   }//end read
+
+   public void close() throws IOException {
+      _in.close();
+   }//end close
+
+   public static void main(String[] args) {
+      if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("--csv"))) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            BookingExportReader.class.getName () +
+            " <file> [--csv]");
+         return;
+      }//end if
+
+      try (BookingExportReader reader = new BookingExportReader(args[0])) {
+         if (args.length == 1) {
+            System.out.printf("%s: %d bookings in %d row groups%n", args[0], reader.rowCount(), reader.groupCount());
+            for (int g = 0; g < reader.groupCount(); g++) {
+               int[] range = reader.bookingIDRange(g);
+               System.out.printf("\trow group %d: %d rows, bookingID %d to %d%n", g, reader._rows[g], range[0], range[1]);
+            }
+            return;
+         }
+         PrintStream out = new PrintStream(System.out, false, "UTF-8");
+         out.println("bookingID,customerID,customerName,hotelID,hotelName,roomNumber,price,bookingDate");
+         for (int g = 0; g < reader.groupCount(); g++) {
+            BookingExport.RowGroup rows = reader.read(g);
+            for (int i = 0; i < rows.size; i++)
+               out.println(rows.bookingID[i] + "," + rows.customerID[i] + "," + csv(rows.customerName[i]) + ","
+                  + rows.hotelID[i] + "," + csv(rows.hotelName[i]) + "," + rows.roomNumber[i] + ","
+                  + rows.price[i] + "," + LocalDate.ofEpochDay(rows.bookingDay[i]));
+         }
+         out.flush();
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }
+   }//end main
+
+   private static String csv(String value) {
+      if (value.indexOf(',') < 0 && value.indexOf('"') < 0)
+         return value;
+      return "\"" + value.replace("\"", "\"\"") + "\"";
+   }//end csv
+
+   // reads and inflates the next column of the row group.
+   private byte[] column(Inflater inflater, int group, int column) throws IOException, DataFormatException {
+      byte[] compressed = new byte[_lengths[group][column]];
+      _in.readFully(compressed);
+      inflater.reset();
+      inflater.setInput(compressed);
+      byte[] buffer = new byte[Math.max(64, compressed.length * 4)];
+      int length = 0;
+      while (!inflater.finished()) {
+         if (length == buffer.length)
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+         int n = inflater.inflate(buffer, length, buffer.length - length);
+         if (n == 0 && inflater.needsInput())
+            throw new DataFormatException("truncated column " + _columns[column]);
+         length += n;
+      }
+      return Arrays.copyOf(buffer, length);
+   }//end column
+
+   private static void decodeValues(byte[] data, int[] values, int rows) {
+      int[] pos = { 0 };
+      for (int i = 0; i < rows; i++)
+         values[i] = unzigzag(readVarint(data, pos));
+   }//end decodeValues
+
+   private static void decodeDeltas(byte[] data, int[] values, int rows) {
+      int[] pos = { 0 };
+      int previous = 0;
+      for (int i = 0; i < rows; i++) {
+         previous += unzigzag(readVarint(data, pos));
+         values[i] = previous;
+      }
+   }//end decodeDeltas
+
+   private static void decodeDictionary(byte[] data, int[] ids, String[] names, int rows) {
+      int[] pos = { 0 };
+      int entries = readVarint(data, pos);
+      int[] dictionaryIDs = new int[entries];
+      String[] dictionaryNames = new String[entries];
+      int previous = 0;
+      for (int e = 0; e < entries; e++) {
+         previous += unzigzag(readVarint(data, pos));
+         dictionaryIDs[e] = previous;
+         int length = readVarint(data, pos);
+         dictionaryNames[e] = new String(data, pos[0], length, StandardCharsets.UTF_8);
+         pos[0] += length;
+      }
+      for (int i = 0; i < rows; i++) {
+         int entry = readVarint(data, pos);
+         ids[i] = dictionaryIDs[entry];
+         names[i] = dictionaryNames[entry];
+      }
+   }//end decodeDictionary
+
+   private static int unzigzag(int value) {
+      return (value >>> 1) ^ -(value & 1);
+   }//end unzigzag
+
+   private static int readVarint(byte[] data, int[] pos) {
+      int value = 0;
+      int shift = 0;
+      int b;
+      do {
+         b = data[pos[0]++];
+         value |= (b & 0x7F) << shift;
+         shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+   }//end readVarint
+
+}//end BookingExportReader
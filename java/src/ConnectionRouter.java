@@ -0,0 +1,140 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Routes statements between a primary connection and any number of
+ * streaming replicas. Writes always go to the primary. Reads are spread
+ * round robin over the replicas, except after this session has written:
+ * then reads are pinned to the primary until a replica has replayed the
+ * primary's WAL position, so the caller always sees its own writes.
+ *
+ * Not thread-safe; each Hotel owns one router.
+ *
+ */
+public class ConnectionRouter {
+
+   private final Connection _primary;
+   private final List<Connection> _replicas;
+   private int _next = 0;
+
+   // WAL position every replica must reach before it serves reads again,
+   // null when nothing is pinned.
+   private String _pinLsn = null;
+   private boolean _pinned = false;
+   private boolean[] _caughtUp;
+
+   /**
+    * @param primary the read-write connection
+    * @param replicas read-only connections to streaming replicas, may be empty
+    */
+   public ConnectionRouter(Connection primary, List<Connection> replicas) {
+      this._primary = primary;
+      this._replicas = new ArrayList<Connection>(replicas);
+      this._caughtUp = new boolean[replicas.size()];
+   }//end ConnectionRouter
+
+   /**
+    * @return the read-write connection
+    */
+   public Connection primary() {
+      return _primary;
+   }//end primary
+
+   /**
+    * @return true if at least one replica is configured
+    */
+   public boolean hasReplicas() {
+      return !_replicas.isEmpty();
+   }//end hasReplicas
+
+   /**
+    * Notes that this session wrote to the primary, pinning reads to it.
+    */
+   public void wrote() {
+      if (_replicas.isEmpty())
+         return;
+      _pinned = true;
+      _pinLsn = null;
+      for (int i = 0; i < _caughtUp.length; i++)
+         _caughtUp[i] = false;
+   }//end wrote
+
+   /**
+    * Picks the connection for a read-only statement.
+    *
+    * @return the next replica, or the primary while no replica has caught up
+    * @throws java.sql.SQLException when the WAL position could not be read
+    */
+   public Connection forRead() throws SQLException {
+      if (_replicas.isEmpty())
+         return _primary;
+      int index = _next;
+      _next = (_next + 1) % _replicas.size();
+      Connection replica = _replicas.get(index);
+      if (!_pinned || _caughtUp[index])
+         return replica;
+
+      // the primary's current position is at or past our last commit.
+      if (_pinLsn == null)
+         _pinLsn = currentLsn();
+      if (!hasReplayed(replica, _pinLsn))
+         return _primary;
+      _caughtUp[index] = true;
+      boolean all = true;
+      for (boolean c : _caughtUp)
+         all &= c;
+      if (all) {
+         _pinned = false;
+         _pinLsn = null;
+      }
+      return replica;
+   }//end forRead
+
+   /**
+    * Closes the primary and every replica connection.
+    */
+   public void close() {
+      for (Connection replica : _replicas) {
+         try{
+            replica.close();
+         }catch (SQLException e){
+            // ignored.
+         }
+      }
+      try{
+         _primary.close();
+      }catch (SQLException e){
+         // ignored.
+      }
+   }//end close
+
+   private String currentLsn() throws SQLException {
+      Statement stmt = _primary.createStatement();
+      try{
+         ResultSet rs = stmt.executeQuery("SELECT pg_current_wal_lsn()::text");
+         rs.next();
+         return rs.getString(1);
+      }finally{
+         stmt.close();
+      }
+   }//end currentLsn
+
+   private static boolean hasReplayed(Connection replica, String lsn) throws SQLException {
+      PreparedStatement stmt = replica.prepareStatement(
+         "SELECT COALESCE(pg_last_wal_replay_lsn() >= CAST(? AS pg_lsn), false)");
+      try{
+         stmt.setString(1, lsn);
+         ResultSet rs = stmt.executeQuery();
+         rs.next();
+         return rs.getBoolean(1);
+      }finally{
+         stmt.close();
+      }
+   }//end hasReplayed
+
+}//end ConnectionRouter
@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
@@ -23,10 +24,23 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
 import java.util.List;
 import java.util.Locale;
 import java.util.ArrayList;
+import java.util.Properties;
+import java.math.BigDecimal;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.lang.Math;
 
 /**
@@ -45,6 +59,53 @@ public class Hotel {
    // reference to physical database connection.
    private Connection _connection = null;
 
+   // sends read-only operations to replicas listed in -Dhotel.replicas.
+   private ConnectionRouter _router = null;
+
+   // one router per shard; the first shard also holds the Users sequence
+   // and the HotelShards placements.
+   private List<ConnectionRouter> _shards = new ArrayList<ConnectionRouter>();
+
+   // maps a hotelID to the index of the shard holding its rooms and bookings.
+   private ShardMap _shardMap = null;
+
+   // runs the per-shard queries of a scatter-gather in parallel.
+   private static final ExecutorService scatterPool = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "shard-scatter");
+      t.setDaemon(true);
+      return t;
+   });
+
+   // operations that never write and may be served by a replica.
+   static final Set<String> READ_ONLY_OPERATIONS = new HashSet<String>(Arrays.asList(
+      "viewHotels", "viewRooms", "viewRecentBookingsfromCustomer", "viewRecentUpdates",
+      "viewBookingHistoryofHotel", "viewRegularCustomers", "viewRoomRepairHistory",
+      "searchRooms", "filterRooms"));
+
+   // values of Rooms.roomType, in menu order.
+   static final String[] ROOM_TYPES = { "standard", "single", "double", "suite", "family" };
+
+   // Rooms.amenities has bit i set when the room has AMENITIES[i].
+   static final String[] AMENITIES = { "wifi", "breakfast", "parking", "pool", "pets", "accessible", "kitchen", "sea view" };
+
+   // logical operation the next database calls are recorded under.
+   private String _operation = "other";
+
+   // counters and latency histograms shared by every Hotel instance.
+   static final QueryMetrics metrics = new QueryMetrics();
+
+   // true while a unit of work started by inTransaction is running.
+   private boolean _inTransaction = false;
+
+   // attempts made by inTransaction before a serialization failure is rethrown.
+   static final int TX_MAX_ATTEMPTS = Integer.getInteger("hotel.tx.attempts", 5);
+
+   // users inserted per statement by createUsers.
+   static final int PROVISION_BATCH = Integer.getInteger("hotel.provision.batch", 10000);
+
+   // statements slower than -Dhotel.slowQuery.millis are logged here.
+   static final SlowQueryLog slowQueryLog = SlowQueryLog.fromSystemProperties();
+
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
    static BufferedReader in = new BufferedReader(
@@ -68,7 +129,42 @@ public class Hotel {
          System.out.println ("\nConnection URL: " + url);
 
          // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         long start = System.nanoTime();
+         this._connection = DriverManager.getConnection(url, connectionProperties(user, passwd));
+         metrics.recordConnectionWait(System.nanoTime() - start);
+
+         // -Dhotel.replicas=host:port,host:port adds streaming replicas of the same database
+         List<Connection> replicas = new ArrayList<Connection>();
+         String replicaList = System.getProperty("hotel.replicas", "").trim();
+         if (!replicaList.isEmpty()) {
+            for (String endpoint : replicaList.split(",")) {
+               String replicaUrl = "jdbc:postgresql://" + endpoint.trim() + "/" + dbname;
+               System.out.println ("Replica URL: " + replicaUrl);
+               start = System.nanoTime();
+               Connection replica = DriverManager.getConnection(replicaUrl, connectionProperties(user, passwd));
+               replica.setReadOnly(true);
+               metrics.recordConnectionWait(System.nanoTime() - start);
+               replicas.add(replica);
+            }
+         }
+         this._router = new ConnectionRouter(this._connection, replicas);
+         this._shards.add(this._router);
+
+         // -Dhotel.shards=host:port,host:port adds more shards after this database
+         String shardList = System.getProperty("hotel.shards", "").trim();
+         if (!shardList.isEmpty()) {
+            for (String endpoint : shardList.split(",")) {
+               String shardUrl = "jdbc:postgresql://" + endpoint.trim() + "/" + dbname;
+               System.out.println ("Shard URL: " + shardUrl);
+               start = System.nanoTime();
+               Connection shard = DriverManager.getConnection(shardUrl, connectionProperties(user, passwd));
+               metrics.recordConnectionWait(System.nanoTime() - start);
+               this._shards.add(new ConnectionRouter(shard, new ArrayList<Connection>()));
+            }
+         }
+         this._shardMap = ShardMap.fromSystemProperties(this._shards.size());
+         if (this._shards.size() > 1)
+            this._shardMap.loadPlacements(this._connection);
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -77,12 +173,252 @@ public class Hotel {
       }//end catch
    }//end Hotel
 
+   /**
+    * Builds the properties handed to the JDBC driver. Any system property
+    * -Dhotel.jdbc.<name>=<value> is passed to the driver as <name>=<value>
+    * and overrides the defaults below.
+    *
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @return the driver properties
+    */
+   static Properties connectionProperties(String user, String passwd) {
+      Properties props = new Properties();
+      props.setProperty("user", user);
+      props.setProperty("password", passwd);
+      // switch to a named server-side statement after 3 executions
+      props.setProperty("prepareThreshold", "3");
+      // fetch large results in chunks when autocommit is off
+      props.setProperty("defaultRowFetchSize", "1000");
+      props.setProperty("binaryTransfer", "true");
+      // lets executeBatch send INSERTs as multi-row statements
+      props.setProperty("reWriteBatchedInserts", "true");
+      for (String name : System.getProperties().stringPropertyNames()) {
+         if (name.startsWith("hotel.jdbc."))
+            props.setProperty(name.substring("hotel.jdbc.".length()), System.getProperty(name));
+      }
+      return props;
+   }//end connectionProperties
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
    public double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
       double t2 = (long1 - long2) * (long1 - long2);
       return Math.sqrt(t1 + t2); 
    }
+
+   /**
+    * Sets the logical operation that following database calls are recorded
+    * under in the metrics registry.
+    *
+    * @param operation the operation name, e.g. "bookRooms"
+    */
+   public void setOperation(String operation) {
+      this._operation = operation;
+      useShard(0);
+   }//end setOperation
+
+   /**
+    * @return the number of shards, 1 when sharding is not configured
+    */
+   public int shardCount() {
+      return _shards.size();
+   }//end shardCount
+
+   /**
+    * @return the shard map used to place hotels
+    */
+   ShardMap shardMap() {
+      return _shardMap;
+   }//end shardMap
+
+   /**
+    * @param shard a shard index
+    * @return the router of that shard
+    */
+   ConnectionRouter shardRouter(int shard) {
+      return _shards.get(shard);
+   }//end shardRouter
+
+   /**
+    * Sends the following statements to the shard holding the given hotel.
+    * Single-hotel operations call this once the hotelID is known; the
+    * next setOperation goes back to the first shard.
+    *
+    * @param hotelID the hotel the operation works on
+    */
+   public void useShardOf(String hotelID) {
+      if (!_inTransaction)
+         refreshPlacements();
+      useShard(_shardMap.shardOf(Integer.parseInt(hotelID.trim())));
+   }//end useShardOf
+
+   /**
+    * Picks up hotels moved by ShardRebalancer since the placements were
+    * loaded; see ShardMap.refresh. If the first shard cannot be reached,
+    * the placements already loaded are kept and the next call tries again.
+    */
+   void refreshPlacements() {
+      if (_shards.size() < 2)
+         return;
+      try{
+         _shardMap.refresh(_shards.get(0).primary());
+      }catch (SQLException e){
+         // the statements that follow report the broken connection
+      }
+   }//end refreshPlacements
+
+   /**
+    * Sends the following statements to the given shard.
+    *
+    * @param shard a shard index
+    */
+   public void useShard(int shard) {
+      if (_shards.isEmpty())
+         return;
+      if (_inTransaction)
+         throw new IllegalStateException("Cannot switch shards inside a transaction");
+      this._router = _shards.get(shard);
+      this._connection = this._router.primary();
+   }//end useShard
+
+   /**
+    * Runs an update on every shard, e.g. to keep the Users, Hotel and
+    * MaintenanceCompany reference tables identical everywhere.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @throws java.sql.SQLException when the update failed on any shard
+    */
+   public void executeUpdateOnAllShards(String sql, Object... params) throws SQLException {
+      for (ConnectionRouter shard : _shards) {
+         shard.wrote();
+         updateOn(shard.primary(), sql, params);
+      }
+   }//end executeUpdateOnAllShards
+
+   /**
+    * Runs an update on every shard so that it takes effect on all of them
+    * or none. The statement runs in a transaction on each shard and the
+    * shards commit once every one of them succeeded. If a commit fails after
+    * others went through, the undo statement is run on the shards that
+    * already committed; an undo that fails as well is attached to the
+    * thrown exception as suppressed.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders of sql
+    * @param undo the statement reversing sql
+    * @param undoParams the values bound to the placeholders of undo
+    * @throws java.sql.SQLException when the update failed on any shard
+    */
+   public void executeUpdateOnAllShardsOrUndo(String sql, Object[] params, String undo, Object... undoParams) throws SQLException {
+      if (_inTransaction)
+         throw new IllegalStateException("Cannot update every shard inside a transaction");
+      List<Connection> open = new ArrayList<Connection>();
+      List<Connection> committed = new ArrayList<Connection>();
+      try{
+         for (ConnectionRouter shard : _shards) {
+            Connection conn = shard.primary();
+            shard.wrote();
+            conn.setAutoCommit(false);
+            open.add(conn);
+            updateOn(conn, sql, params);
+         }
+         for (Connection conn : open) {
+            conn.commit();
+            committed.add(conn);
+         }
+      }catch (SQLException e){
+         for (Connection conn : open) {
+            try{
+               if (committed.contains(conn)) {
+                  updateOn(conn, undo, undoParams);
+                  conn.commit();
+               }else {
+                  conn.rollback();
+               }
+            }catch (SQLException cleanup){
+               e.addSuppressed(cleanup);
+            }
+         }
+         throw e;
+      }finally{
+         for (Connection conn : open) {
+            try{
+               conn.setAutoCommit(true);
+            }catch (SQLException e){
+               // the connection is broken, the next statement reports it
+            }
+         }
+      }
+   }//end executeUpdateOnAllShardsOrUndo
+
+   // runs a parameterised update on the given connection.
+   private int updateOn(Connection conn, String sql, Object[] params) throws SQLException {
+      long start = System.nanoTime();
+      int rowCount = 0;
+      boolean ok = false;
+      PreparedStatement stmt = prepare(conn, sql, params);
+      try{
+         rowCount = stmt.executeUpdate ();
+         ok = true;
+      }finally{
+         stmt.close ();
+         record(conn, sql, params, start, rowCount, ok);
+      }
+      return rowCount;
+   }//end updateOn
+
+   /**
+    * Runs a query on every shard in parallel and merges the results for
+    * operations that span hotels. Each shard applies its own ORDER BY and
+    * LIMIT; the merge re-sorts with the given order and re-applies the limit.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param order the order of the merged rows, or null to keep shard order
+    * @param limit the most rows returned, or 0 for all
+    * @param params the values bound to the placeholders, in order
+    * @return the merged query result as a list of records
+    * @throws java.sql.SQLException when the query failed on any shard
+    */
+   public List<List<String>> executeQueryOnAllShards(String query, Comparator<List<String>> order, int limit, Object... params) throws SQLException {
+      if (_shards.size() == 1)
+         return executeQueryAndReturnResult(query, params);
+      final boolean readOnly = READ_ONLY_OPERATIONS.contains(_operation);
+      List<Future<List<List<String>>>> parts = new ArrayList<Future<List<List<String>>>>();
+      for (final ConnectionRouter shard : _shards) {
+         parts.add(scatterPool.submit(() -> queryOn(readOnly ? shard.forRead() : shard.primary(), query, params)));
+      }
+      List<List<String>> result = new ArrayList<List<String>>();
+      try{
+         for (Future<List<List<String>>> part : parts)
+            result.addAll(part.get());
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while querying shards");
+      }catch (ExecutionException e){
+         if (e.getCause() instanceof SQLException)
+            throw (SQLException) e.getCause();
+         throw new SQLException(e.getCause());
+      }
+      if (order != null)
+         result.sort(order);
+      if (limit > 0 && result.size() > limit)
+         result = new ArrayList<List<String>>(result.subList(0, limit));
+      return result;
+   }//end executeQueryOnAllShards
+
+   /**
+    * Orders records by one column, newest first. Dates and timestamps come
+    * back from the driver in ISO format, so they sort correctly as text.
+    *
+    * @param column the zero-based column index
+    * @return a descending comparator on that column
+    */
+   public static Comparator<List<String>> descendingBy(final int column) {
+      return (a, b) -> String.valueOf(b.get(column)).compareTo(String.valueOf(a.get(column)));
+   }//end descendingBy
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -91,14 +427,21 @@ public class Hotel {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
+      long start = System.nanoTime();
+      int rowCount = 0;
+      boolean ok = false;
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
-
-      // close the instruction
-      stmt.close ();
+      Connection conn = connectionFor(true);
+      Statement stmt = conn.createStatement ();
+      try{
+         // issues the update instruction
+         rowCount = stmt.executeUpdate (sql);
+         ok = true;
+      }finally{
+         // close the instruction
+         stmt.close ();
+         record(conn, sql, null, start, rowCount, ok);
+      }
    }//end executeUpdate
 
    /**
@@ -111,36 +454,43 @@ public class Hotel {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
+      long start = System.nanoTime();
+      int rowCount = 0;
+      boolean ok = false;
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Connection conn = connectionFor(false);
+      Statement stmt = conn.createStatement ();
+      try{
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
 
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
+         // iterates through the result set and output them to standard out.
+         boolean outputHeader = true;
+         while (rs.next()){
+            if(outputHeader){
+               for(int i = 1; i <= numCol; i++){
+                  System.out.print(rsmd.getColumnName(i) + "\t");
+               }
+               System.out.println();
+               outputHeader = false;
+            }
+            for (int i=1; i<=numCol; ++i)
+               System.out.print (rs.getString (i) + "\t");
+            System.out.println ();
+            ++rowCount;
+         }//end while
+         ok = true;
+      }finally{
+         stmt.close ();
+         record(conn, query, null, start, rowCount, ok);
+      }
       return rowCount;
    }//end executeQuery
 
@@ -154,12 +504,154 @@ public class Hotel {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+      long start = System.nanoTime();
+      boolean ok = false;
+      List<List<String>> result  = new ArrayList<List<String>>();
       // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+      Connection conn = connectionFor(!isSelect(query));
+      Statement stmt = conn.createStatement ();
+      try{
+         // issues the query instruction
+         result = readResult(stmt.executeQuery (query));
+         ok = true;
+      }finally{
+         stmt.close ();
+         record(conn, query, null, start, result.size(), ok);
+      }
+      return result;
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Same as executeQueryAndReturnResult(String) but binds the given
+    * parameters to the '?' placeholders of the query, so they are sent
+    * separately from the statement text and show up in the slow query log.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      return queryOn(connectionFor(!isSelect(query)), query, params);
+   }//end executeQueryAndReturnResult
+
+   // runs a parameterised query on the given connection and saves every row.
+   private List<List<String>> queryOn(Connection conn, String query, Object[] params) throws SQLException {
+      long start = System.nanoTime();
+      boolean ok = false;
+      List<List<String>> result  = new ArrayList<List<String>>();
+      PreparedStatement stmt = prepare(conn, query, params);
+      try{
+         result = readResult(stmt.executeQuery ());
+         ok = true;
+      }finally{
+         stmt.close ();
+         record(conn, query, params, start, result.size(), ok);
+      }
+      return result;
+   }//end queryOn
+
+   /**
+    * Same as executeQuery(String) with bound parameters.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rowCount = 0;
+      boolean ok = false;
+      Connection conn = connectionFor(false);
+      PreparedStatement stmt = prepare(conn, query, params);
+      try{
+         ResultSet rs = stmt.executeQuery ();
+         while (rs.next()){
+            rowCount++;
+         }//end while
+         ok = true;
+      }finally{
+         stmt.close ();
+         record(conn, query, params, start, rowCount, ok);
+      }
+      return rowCount;
+   }
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Same as executeUpdate(String) with bound parameters.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime();
+      int rowCount = 0;
+      boolean ok = false;
+      Connection conn = connectionFor(true);
+      PreparedStatement stmt = prepare(conn, sql, params);
+      try{
+         rowCount = stmt.executeUpdate ();
+         ok = true;
+      }finally{
+         stmt.close ();
+         record(conn, sql, params, start, rowCount, ok);
+      }
+      return rowCount;
+   }//end executeUpdate
 
+   /**
+    * Runs the same statement once per parameter row as one JDBC batch, so
+    * the executions are pipelined to the server instead of each waiting
+    * for its own round trip.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param rows the values bound to the placeholders, one array per execution
+    * @return the number of rows affected by each execution, in order
+    * @throws java.sql.SQLException when the batch failed
+    */
+   public int[] executeBatch (String sql, List<Object[]> rows) throws SQLException {
+      long start = System.nanoTime();
+      int[] counts = new int[0];
+      boolean ok = false;
+      Connection conn = connectionFor(true);
+      PreparedStatement stmt = conn.prepareStatement (sql);
+      try{
+         for (Object[] params : rows) {
+            for (int i = 0; i < params.length; i++)
+               stmt.setObject (i + 1, params[i]);
+            stmt.addBatch ();
+         }
+         counts = stmt.executeBatch ();
+         ok = true;
+      }finally{
+         stmt.close ();
+         // rows affected, like the other helpers; SUCCESS_NO_INFO counts as none
+         int rowCount = 0;
+         for (int count : counts)
+            rowCount += Math.max(0, count);
+         record(conn, sql, null, start, rowCount, ok);
+      }
+      return counts;
+   }//end executeBatch
+
+   // creates a prepared statement and binds the parameters in order.
+   private static PreparedStatement prepare(Connection conn, String sql, Object[] params) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement (sql);
+      try{
+         for (int i = 0; i < params.length; i++)
+            stmt.setObject (i + 1, params[i]);
+      }catch (SQLException e){
+         stmt.close ();
+         throw e;
+      }
+      return stmt;
+   }//end prepare
+
+   // saves every row of the result set as a list of attribute values.
+   private static List<List<String>> readResult(ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set.  The metadata
        ** contains row and column info.
@@ -170,14 +662,52 @@ public class Hotel {
       // iterates through the result set and saves the data returned by the query.
       List<List<String>> result  = new ArrayList<List<String>>();
       while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
+         List<String> record = new ArrayList<String>();
+         for (int i=1; i<=numCol; ++i)
+            record.add(rs.getString (i));
+         result.add(record);
       }//end while
-      stmt.close ();
       return result;
-   }//end executeQueryAndReturnResult
+   }//end readResult
+
+   // records a finished statement in the metrics and, if slow, the slow query log.
+   private void record(Connection conn, String sql, Object[] params, long start, int rows, boolean ok) {
+      long nanos = System.nanoTime() - start;
+      metrics.record(_operation, nanos, rows, ok);
+      // a write to the old shard of a moved hotel fails, e.g. on a foreign
+      // key, so the next routing checks the placements first
+      if (!ok && _shardMap != null)
+         _shardMap.invalidate();
+      if (ok && slowQueryLog.isSlow(nanos))
+         slowQueryLog.log(conn, _operation, sql, params, nanos, rows);
+   }//end record
+
+   /**
+    * Picks the connection for the next statement. Writes, statements inside
+    * a unit of work and operations not listed in READ_ONLY_OPERATIONS use
+    * the primary; reports and lookups go to a replica when one is set up.
+    *
+    * @param write true if the statement modifies data
+    * @return the connection to run the statement on
+    * @throws java.sql.SQLException when the replica position could not be read
+    */
+   private Connection connectionFor(boolean write) throws SQLException {
+      if (write) {
+         _router.wrote();
+         return this._connection;
+      }
+      if (_inTransaction || !READ_ONLY_OPERATIONS.contains(_operation))
+         return this._connection;
+      return _router.forRead();
+   }//end connectionFor
+
+   /**
+    * @param sql a SQL statement
+    * @return true if the statement is a plain SELECT
+    */
+   static boolean isSelect(String sql) {
+      return sql.trim().regionMatches(true, 0, "SELECT", 0, 6);
+   }//end isSelect
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -188,20 +718,26 @@ public class Hotel {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
-
-       int rowCount = 0;
+      long start = System.nanoTime();
+      int rowCount = 0;
+      boolean ok = false;
+      // creates a statement object
+      Connection conn = connectionFor(false);
+      Statement stmt = conn.createStatement ();
+      try{
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery (query);
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+         // iterates through the result set and count nuber of results.
+         while (rs.next()){
+            rowCount++;
+         }//end while
+         ok = true;
+      }finally{
+         stmt.close ();
+         record(conn, query, null, start, rowCount, ok);
+      }
+      return rowCount;
    }
 
    /**
@@ -214,27 +750,144 @@ public class Hotel {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-      Statement stmt = this._connection.createStatement ();
-
-      ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
+      return getNewUserID(String.format("Select currval('%s')", sequence));
    }
 
    public int getNewUserID(String sql) throws SQLException {
-      Statement stmt = this._connection.createStatement ();
-      ResultSet rs = stmt.executeQuery (sql);
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
+      long start = System.nanoTime();
+      int value = -1;
+      boolean ok = false;
+      // sequence values are per session, so always ask the primary.
+      Connection conn = connectionFor(true);
+      Statement stmt = conn.createStatement ();
+      try{
+         ResultSet rs = stmt.executeQuery (sql);
+         if (rs.next())
+            value = rs.getInt(1);
+         ok = true;
+      }finally{
+         stmt.close ();
+         record(conn, sql, null, start, value == -1 ? 0 : 1, ok);
+      }
+      return value;
    }
+   /**
+    * Transaction isolation levels selectable for a unit of work.
+    */
+   public enum Isolation {
+      READ_COMMITTED(Connection.TRANSACTION_READ_COMMITTED),
+      REPEATABLE_READ(Connection.TRANSACTION_REPEATABLE_READ),
+      SERIALIZABLE(Connection.TRANSACTION_SERIALIZABLE);
+
+      final int level;
+
+      Isolation(int level) {
+         this.level = level;
+      }
+   }//end Isolation
+
+   /**
+    * A group of statements run as one transaction by inTransaction. It may
+    * be run more than once, so it must not prompt the user or print.
+    */
+   public interface Work<T> {
+      T run(Hotel esql) throws SQLException;
+   }//end Work
+
+   /**
+    * Runs the given work as a single transaction at the given isolation
+    * level and commits once at the end. Serialization failures and
+    * deadlocks roll back and retry the whole unit with exponential backoff,
+    * up to -Dhotel.tx.attempts times. A call made from inside another unit
+    * of work joins the outer transaction.
+    *
+    * @param isolation the isolation level of the transaction
+    * @param work the statements to run
+    * @return whatever the work returned
+    * @throws java.sql.SQLException when the work failed or retries ran out
+    */
+   public <T> T inTransaction(Isolation isolation, Work<T> work) throws SQLException {
+      if (_inTransaction)
+         return work.run(this);
+      boolean autoCommit = this._connection.getAutoCommit();
+      int previousIsolation = this._connection.getTransactionIsolation();
+      for (int attempt = 1; ; attempt++) {
+         _inTransaction = true;
+         // the exception about to be thrown, if any
+         Exception failure = null;
+         try{
+            this._connection.setAutoCommit(false);
+            this._connection.setTransactionIsolation(isolation.level);
+            T result = work.run(this);
+            long start = System.nanoTime();
+            this._connection.commit();
+            record(this._connection, "COMMIT", null, start, 0, true);
+            return result;
+         }catch (SQLException e){
+            rollbackQuietly();
+            if (!isRetryable(e) || attempt >= TX_MAX_ATTEMPTS) {
+               failure = e;
+               throw e;
+            }
+            backoff(attempt);
+         }catch (RuntimeException e){
+            rollbackQuietly();
+            failure = e;
+            throw e;
+         }finally{
+            _inTransaction = false;
+            // these fail too on a broken connection; the original failure is
+            // thrown with them attached, otherwise the next statement reports it
+            try{
+               this._connection.setAutoCommit(autoCommit);
+            }catch (SQLException e){
+               if (failure != null)
+                  failure.addSuppressed(e);
+            }
+            try{
+               this._connection.setTransactionIsolation(previousIsolation);
+            }catch (SQLException e){
+               if (failure != null)
+                  failure.addSuppressed(e);
+            }
+         }
+      }
+   }//end inTransaction
+
+   // serialization_failure and deadlock_detected are safe to retry.
+   private static boolean isRetryable(SQLException e) {
+      String state = e.getSQLState();
+      return "40001".equals(state) || "40P01".equals(state);
+   }//end isRetryable
+
+   // sleeps 10ms, 20ms, 40ms, ... (capped at 1s) with random jitter.
+   private static void backoff(int attempt) throws SQLException {
+      long delay = Math.min(1000L, 10L << Math.min(attempt - 1, 10));
+      try{
+         Thread.sleep(delay / 2 + (long) (Math.random() * delay / 2));
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while retrying transaction");
+      }
+   }//end backoff
+
+   private void rollbackQuietly() {
+      try{
+         this._connection.rollback();
+      }catch (SQLException e){
+         // ignored, the original failure is more useful.
+      }
+   }//end rollbackQuietly
+
    /**
     * Method to close the physical connection if it is open.
     */
    public void cleanup(){
       try{
-         if (this._connection != null){
+         if (!this._shards.isEmpty()){
+            for (ConnectionRouter shard : this._shards)
+               shard.close ();
+         }else if (this._connection != null){
             this._connection.close ();
          }//end if
       }catch (SQLException e){
@@ -248,28 +901,37 @@ public class Hotel {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
+      // --batch runs a script of commands instead of the menus.
+      if (args.length == 5 && args[3].equals("--batch")) {
+         BatchRunner.main(new String[] { args[0], args[1], args[2], args[4] });
+         return;
+      }//end if
       if (args.length != 3) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Hotel.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--batch <file>|-]");
          return;
       }//end if
 
       Hotel esql = null;
       try{
          // use postgres JDBC driver.
-         Class.forName ("org.postgresql.Driver").newInstance ();
+         Class.forName ("org.postgresql.Driver");
          // instantiate the Hotel object and creates a physical
          // connection.
          String dbname = args[0];
          String dbport = args[1];
          String user = args[2];
          esql = new Hotel (dbname, dbport, user, "");
+         // -Dhotel.metrics.interval=N logs a metrics snapshot every N seconds
+         int metricsInterval = Integer.getInteger("hotel.metrics.interval", 0);
+         if (metricsInterval > 0)
+            metrics.startPeriodicLogging(metricsInterval, System.err);
          boolean attempted = false;
          boolean badchoice = false;
-         boolean newUserCreated = false;
+         int newUserID = -1;
          boolean keepon = true;
          while(keepon) {
             Greeting();
@@ -281,9 +943,9 @@ public class Hotel {
                badchoice = false;
                System.out.println(ANSI_RED +"\nUnrecognized choice!" + ANSI_RESET);
             }
-            if (newUserCreated) {
-               newUserCreated = false;
-               System.out.println (ANSI_GREEN + "\nUser successfully created with userID = " + esql.getNewUserID("SELECT last_value FROM users_userID_seq") + ANSI_RESET);         
+            if (newUserID != -1) {
+               System.out.println (ANSI_GREEN + "\nUser successfully created with userID = " + newUserID + ANSI_RESET);         
+               newUserID = -1;
             }
             System.out.println();
             System.out.println("1. Create user");
@@ -292,12 +954,13 @@ public class Hotel {
             System.out.println("----------------------------------------------------------");
             String authorisedUser = null;
             switch (readChoice()){
-               case 1: CreateUser(esql); newUserCreated = true; break;
+               case 1: newUserID = CreateUser(esql); break;
                case 2: authorisedUser = LogIn(esql); attempted = true; break;
                case 9: keepon = false; break;
                default : badchoice = true; break;
             }//end switch
             if (authorisedUser != null) {
+               esql.setOperation("logIn");
                String query = "SELECT u.userType FROM Users u WHERE u.userID = " + authorisedUser;
                String userType = esql.executeQueryAndReturnResult(query).get(0).get(0);
                if (userType.toLowerCase().contains("customer")) {
@@ -311,9 +974,9 @@ public class Hotel {
                      System.out.println("| 2. View Rooms                                          |");
                      System.out.println("| 3. Book a Room                                         |");
                      System.out.println("| 4. View recent booking history                         |");
-                     System.out.println("|                                                        |");
-                     System.out.println("|                                                        |");
-                     System.out.println("|                                                        |");
+                     System.out.println("| 5. Search best available rooms                         |");
+                     System.out.println("| 6. Book a group or multi-night stay                    |");
+                     System.out.println("| 7. Search rooms by price and features                  |");
                      System.out.println("|                                                        |");
                      System.out.println("|                                                        |");
                      System.out.println("|                                                        |");
@@ -329,6 +992,9 @@ public class Hotel {
                         case 2: viewRooms(esql); break;
                         case 3: bookRooms(esql, authorisedUser); break;
                         case 4: viewRecentBookingsfromCustomer(esql, authorisedUser); break;
+                        case 5: searchBestRooms(esql); break;
+                        case 6: bookGroupRooms(esql, authorisedUser); break;
+                        case 7: searchRoomsByFeatures(esql); break;
                         case 20: usermenu = false; attempted = false; break;
                         default : badchoice = true; break;
                      }
@@ -352,6 +1018,9 @@ public class Hotel {
                      System.out.println("| 8. View 5 regular Customers                            |");
                      System.out.println("| 9. Place room repair Request to a company              |");
                      System.out.println("| 10. View room repair Requests history                  |");
+                     System.out.println("| 11. Search best available rooms                        |");
+                     System.out.println("| 12. Book a group or multi-night stay                   |");
+                     System.out.println("| 13. Search rooms by price and features                 |");
                      System.out.println("----------------------------------------------------------");
                      System.out.println("| 20. Log out                                            |");
                      System.out.println("----------------------------------------------------------");                
@@ -370,6 +1039,9 @@ public class Hotel {
                         case 8: viewRegularCustomers(esql, authorisedUser); break;
                         case 9: placeRoomRepairRequests(esql, authorisedUser); break;
                         case 10: viewRoomRepairHistory(esql, authorisedUser); break;
+                        case 11: searchBestRooms(esql); break;
+                        case 12: bookGroupRooms(esql, authorisedUser); break;
+                        case 13: searchRoomsByFeatures(esql); break;
                         case 20: managermenu = false; attempted = false; break;
                         default : badchoice = true; break;
                      }                  
@@ -385,6 +1057,14 @@ public class Hotel {
             if(esql != null) {
                System.out.print("Disconnecting from database...");
                esql.cleanup ();
+               metrics.stopPeriodicLogging();
+               // -Dhotel.metrics.file=path writes the final snapshot as JSON
+               String metricsFile = System.getProperty("hotel.metrics.file");
+               if (metricsFile != null) {
+                  PrintStream out = new PrintStream(new FileOutputStream(metricsFile));
+                  out.println(metrics.toJson());
+                  out.close();
+               }
                System.out.println("Done\n\nThank you for using the Hotel Database Management System!");
             }//end if
          }catch (Exception e) {
@@ -568,35 +1248,91 @@ public class Hotel {
    /*
     * Creates a new user
     **/
-   public static void CreateUser(Hotel esql){
+   public static int CreateUser(Hotel esql){
       try{
+         esql.setOperation("createUser");
          System.out.print("\tEnter name: ");
          String name = in.readLine();
          System.out.print("\tEnter password: ");
          String password = in.readLine(); 
          String type="customer";
-			String query = String.format("INSERT INTO USERS (name, password, userType) VALUES ('%s','%s', '%s')", name, password, type);
-         esql.executeUpdate(query);
+         return createUser(esql, name, password, type);
       }catch(Exception e){
          System.err.println (e.getMessage ());
+         return -1;
       }
    }//end CreateUser
 
+   /**
+    * Creates one user. The ID is the one the insert itself was given, so
+    * concurrent signups never see each other's IDs.
+    *
+    * @return the new userID
+    */
+   public static int createUser(Hotel esql, String name, String password, String type) throws SQLException {
+      if (esql.shardCount() == 1) {
+         String query = "INSERT INTO Users (name, password, userType) VALUES (?, ?, ?) RETURNING userID";
+         return Integer.parseInt(esql.executeQueryAndReturnResult(query, name, password, type).get(0).get(0));
+      }
+      // Users is copied to every shard, IDs come from the first shard's sequence
+      int userID = esql.getNewUserID("SELECT nextval('users_userID_seq')");
+      esql.executeUpdateOnAllShardsOrUndo("INSERT INTO Users (userID, name, password, userType) VALUES (?, ?, ?, ?)",
+         new Object[] { userID, name, password, type }, "DELETE FROM Users WHERE userID = ?", userID);
+      return userID;
+   }//end createUser
+
+   /**
+    * Creates many users, e.g. for a bulk import. Every -Dhotel.provision.batch
+    * users take one statement reserving their IDs from the sequence and one
+    * multi-row insert, so the IDs returned match the input rows exactly.
+    * Each batch is created on every shard or on none, but commits on its
+    * own; if one fails, the earlier ones stay.
+    *
+    * @param users rows of name, password, userType
+    * @return the new userIDs, in the order of the given users
+    */
+   public static int[] createUsers(Hotel esql, List<String[]> users) throws SQLException {
+      int[] userIDs = new int[users.size()];
+      for (int from = 0; from < users.size(); from += PROVISION_BATCH) {
+         int to = Math.min(users.size(), from + PROVISION_BATCH);
+         List<List<String>> keys = esql.executeQueryAndReturnResult(
+            "SELECT nextval('users_userID_seq') FROM generate_series(1, ?)", Integer.valueOf(to - from));
+         Integer[] ids = new Integer[to - from];
+         String[] names = new String[to - from];
+         String[] passwords = new String[to - from];
+         String[] types = new String[to - from];
+         for (int i = from; i < to; i++) {
+            userIDs[i] = Integer.parseInt(keys.get(i - from).get(0));
+            ids[i - from] = Integer.valueOf(userIDs[i]);
+            names[i - from] = users.get(i)[0];
+            passwords[i - from] = users.get(i)[1];
+            types[i - from] = users.get(i)[2];
+         }
+         // Users is copied to every shard
+         esql.executeUpdateOnAllShardsOrUndo("INSERT INTO Users (userID, name, password, userType) "
+            + "SELECT * FROM unnest(CAST(? AS integer[]), CAST(? AS text[]), CAST(? AS text[]), CAST(? AS text[]))",
+            new Object[] { ids, names, passwords, types },
+            "DELETE FROM Users WHERE userID = ANY(CAST(? AS integer[]))", (Object) ids);
+      }
+      return userIDs;
+   }//end createUsers
+
    /**
     * Check log in credentials for an existing user
     * @return User login or null is the user does not exist
     **/
    public static String LogIn(Hotel esql){
       try{
+         esql.setOperation("logIn");
          System.out.print("\tEnter userID: ");
-         String userID = Integer.toString(readUserID());
+         int userID = readUserID();
          System.out.print("\tEnter password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE userID = '%s' AND password = '%s'", userID, password);
-         int userNum = esql.executeQuery(query);
+         String query = "SELECT * FROM USERS WHERE userID = ? AND password = ?";
+         int userNum = esql.executeQuery(query, Integer.valueOf(userID), password);
          if (userNum > 0)
-            return userID;
+            return Integer.toString(userID);
          return null;
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -620,6 +1356,7 @@ public class Hotel {
 
    public static void viewHotels(Hotel esql) {
       try{
+         esql.setOperation("viewHotels");
          String latitude = null;
          while(latitude == null){
             System.out.print("\tEnter latitude: ");
@@ -659,24 +1396,34 @@ public class Hotel {
          System.err.println (e.getMessage());
       }
    }
+   /**
+    * @return rows of hotelID, roomNumber, price, imageURL free on the date
+    *         and not under repair
+    */
+   public static List<List<String>> availableRooms(Hotel esql, String hotelID, String date) throws SQLException {
+      esql.useShardOf(hotelID);
+      String query = "SELECT r.hotelID, r.roomNumber, r.price, r.imageURL FROM rooms r WHERE NOT EXISTS (SELECT * FROM roombookings b WHERE b.bookingDate = CAST(? AS date)";
+      query += " AND r.hotelID = hotelID AND r.roomNumber = b.roomNumber)";
+      query += " AND NOT EXISTS (SELECT * FROM RoomRepairs p WHERE p.repairDate = CAST(? AS date) AND p.hotelID = r.hotelID AND p.roomNumber = r.roomNumber)";
+      query += "AND r.hotelID = ? ORDER BY r.roomNumber";
+      return esql.executeQueryAndReturnResult(query, date, date, Integer.valueOf(hotelID));
+   }
+
    public static void viewRooms(Hotel esql) {
       try{
+         esql.setOperation("viewRooms");
          String hotelID = null;
          while(hotelID == null){
             hotelID = getValidHotelID(esql);
          }
+         esql.useShardOf(hotelID);
          System.out.println();      
          String date = null;
          while(date == null){
             date = getValidDate(esql);
          }
 
-         String query = "SELECT r.hotelID, r.roomNumber, r.price, r.imageURL FROM rooms r WHERE NOT EXISTS (SELECT * FROM roombookings b WHERE b.bookingDate = '";
-         query += date + "' AND r.hotelID = hotelID AND r.roomNumber = b.roomNumber)";
-         query += "AND r.hotelID = ";
-         query += hotelID  + " ORDER BY r.roomNumber";
-         
-         List<List<String>> output = esql.executeQueryAndReturnResult(query);
+         List<List<String>> output = availableRooms(esql, hotelID, date);
          int rowCount = output.size();
          System.out.printf("\n\n\n\n\n---------------------------------------------------------------------\n");
          String title = String.format("|" + ANSI_YELLOW + "                   Rooms Available on %10s                   " + ANSI_RESET + "|", date);
@@ -693,12 +1440,353 @@ public class Hotel {
          System.err.println (e.getMessage());
       }
    }
+   /**
+    * Finds the K best rooms within a radius that are free for every night
+    * from startDate to endDate and cost at most maxPrice, in one query. The
+    * bounding box lets the Hotel location index prefilter before the exact
+    * distance test. Each hotel in range then reads its rooms cheapest first
+    * from the rooms price index and stops after K free ones, which hold all
+    * of its rows that can make the top K in either order, so only hotels
+    * times K rows are sorted. With sharding every shard returns its own top
+    * K and the results are merged.
+    *
+    * @param latitude the customer's latitude
+    * @param longitude the customer's longitude
+    * @param radius the largest distance in the same units as viewHotels
+    * @param startDate the first night, MM/DD/YYYY
+    * @param endDate the last night, MM/DD/YYYY
+    * @param maxPrice the highest price per night
+    * @param k the number of rooms returned
+    * @param nearestFirst order by distance instead of price
+    * @return rows of hotelID, hotelName, roomNumber, price, distance
+    */
+   public static List<List<String>> searchRooms(Hotel esql, double latitude, double longitude, double radius,
+         String startDate, String endDate, int maxPrice, int k, boolean nearestFirst) throws SQLException {
+      // the radius is tested on the exact distance, only the output is rounded
+      String query = "SELECT h.hotelID, h.hotelName, r.roomNumber, r.price, ROUND(CAST(d.distance AS numeric), 2) AS distance FROM Hotel h, ";
+      query += "LATERAL (SELECT sqrt((h.latitude - ?) * (h.latitude - ?) + (h.longitude - ?) * (h.longitude - ?)) AS distance) d, ";
+      query += "LATERAL (SELECT x.roomNumber, x.price FROM Rooms x WHERE x.hotelID = h.hotelID AND x.price <= ? ";
+      query += "AND NOT EXISTS (SELECT 1 FROM RoomBookings b WHERE b.hotelID = x.hotelID AND b.roomNumber = x.roomNumber ";
+      query += "AND b.bookingDate BETWEEN CAST(? AS date) AND CAST(? AS date)) ";
+      query += "AND NOT EXISTS (SELECT 1 FROM RoomRepairs p WHERE p.hotelID = x.hotelID AND p.roomNumber = x.roomNumber ";
+      query += "AND p.repairDate BETWEEN CAST(? AS date) AND CAST(? AS date)) ";
+      query += "ORDER BY x.price LIMIT ?) r ";
+      query += "WHERE h.latitude BETWEEN ? AND ? AND h.longitude BETWEEN ? AND ? AND d.distance < ? ";
+      // by output position, so the shards sort on the rounded distance the merge compares
+      query += nearestFirst ? "ORDER BY 5, 4 " : "ORDER BY 4, 5 ";
+      query += "LIMIT ?";
+      Comparator<List<String>> order = nearestFirst
+         ? Comparator.comparing((List<String> row) -> Double.valueOf(row.get(4))).thenComparing(row -> Integer.valueOf(row.get(3)))
+         : Comparator.comparing((List<String> row) -> Integer.valueOf(row.get(3))).thenComparing(row -> Double.valueOf(row.get(4)));
+      // numeric parameters keep the bounding box comparable with the decimal columns and their index
+      BigDecimal lat = BigDecimal.valueOf(latitude);
+      BigDecimal lon = BigDecimal.valueOf(longitude);
+      BigDecimal r = BigDecimal.valueOf(radius);
+      return esql.executeQueryOnAllShards(query, order, k,
+         lat, lat, lon, lon, maxPrice, startDate, endDate, startDate, endDate, k,
+         lat.subtract(r), lat.add(r), lon.subtract(r), lon.add(r), r, k);
+   }
+
+   public static void searchBestRooms(Hotel esql) {
+      try{
+         esql.setOperation("searchRooms");
+         String latitude = null;
+         while(latitude == null){
+            System.out.print("\tEnter latitude: ");
+            latitude = readInt();
+         }
+         String longitude = null;
+         while(longitude == null){
+            System.out.print("\tEnter longitude: ");
+            longitude = readInt();
+         }
+         String radius = null;
+         while(radius == null){
+            System.out.print("\tSearch radius in units: ");
+            radius = readInt();
+         }
+         System.out.println();
+         String startDate = null;
+         String endDate = null;
+         while(endDate == null){
+            System.out.println("\tFirst night");
+            startDate = getValidDate(esql);
+            System.out.println("\tLast night");
+            endDate = getValidDate(esql);
+            DateTimeFormatter format = DateTimeFormatter.ofPattern("MM/dd/yyyy", Locale.ENGLISH);
+            if (LocalDate.parse(endDate, format).isBefore(LocalDate.parse(startDate, format))){
+               System.out.println(ANSI_RED + "\tThe last night cannot be before the first night." + ANSI_RESET);
+               endDate = null;
+            }
+         }
+         System.out.println();
+         String maxPrice = null;
+         while(maxPrice == null){
+            System.out.print("\tHighest price per night: $: ");
+            maxPrice = readInt();
+         }
+         String k = null;
+         while(k == null){
+            System.out.print("\tNumber of rooms to show: ");
+            k = readInt();
+         }
+         System.out.println("\t1. Cheapest first");
+         System.out.println("\t2. Nearest first");
+         boolean nearestFirst = readChoice() == 2;
+
+         List<List<String>> output = searchRooms(esql, Double.parseDouble(latitude), Double.parseDouble(longitude),
+            Double.parseDouble(radius), startDate, endDate, Integer.parseInt(maxPrice), Integer.parseInt(k), nearestFirst);
+         int rowCount = output.size();
+
+         System.out.printf("\n\n\n\n\n--------------------------------------------------------------------------------\n");
+         String title = String.format("|" + ANSI_YELLOW + "                Best Rooms Available %10s to %10s                 " + ANSI_RESET + "|", startDate, endDate);
+         System.out.println(title);
+         System.out.printf("--------------------------------------------------------------------------------\n");
+         System.out.printf("| %8s | %-30s | %11s | %7s | %8s |%n", "Hotel ID", "Hotel Name", "Room Number", "Price", "Distance");
+         System.out.printf("--------------------------------------------------------------------------------\n");
+         for(int i = 0; i < rowCount; i++){
+            System.out.printf("| %8s | %-30s | %11s | %7s | %8s |%n", output.get(i).get(0), output.get(i).get(1), output.get(i).get(2), output.get(i).get(3), output.get(i).get(4));
+         }
+         System.out.printf("--------------------------------------------------------------------------------\n\n");
+         promptEnterKey();
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+   /**
+    * Orders of the rooms returned by filterRooms. Each is the key order of
+    * one of the filterRooms indexes, read forwards or, for PRICIEST,
+    * backwards.
+    */
+   public enum RoomOrder {
+      CHEAPEST("r.price, r.hotelID, r.roomNumber"),
+      PRICIEST("r.price DESC, r.hotelID DESC, r.roomNumber DESC"),
+      LARGEST("r.capacity DESC, r.price, r.hotelID, r.roomNumber");
+
+      final String orderBy;
+
+      RoomOrder(String orderBy) {
+         this.orderBy = orderBy;
+      }
+   }//end RoomOrder
+
+   /**
+    * Finds the first K rooms across every hotel in a price range that have
+    * at least the given capacity and all of the given amenities, optionally
+    * only of one type and free on one night. The filterRooms indexes of
+    * sql/src/create_indexes.sql hand out rooms already in the requested
+    * order, so a shard stops after K matches instead of returning every room
+    * for the client to filter; sql/src/explain_filter_rooms.sql shows the
+    * plans. With sharding every shard returns its own first K and the
+    * results are merged.
+    *
+    * @param minPrice the lowest price per night
+    * @param maxPrice the highest price per night
+    * @param roomType one of ROOM_TYPES, or null for any type
+    * @param minCapacity the fewest guests the room must sleep
+    * @param amenities the AMENITIES bits the room must all have, or 0
+    * @param date the night the room must be free, MM/DD/YYYY, or null
+    * @param order the order of the rooms
+    * @param k the number of rooms returned
+    * @return rows of hotelID, hotelName, roomNumber, roomType, capacity, price, amenities
+    *         with the amenities spelled out
+    */
+   public static List<List<String>> filterRooms(Hotel esql, int minPrice, int maxPrice, String roomType, int minCapacity,
+         int amenities, String date, RoomOrder order, int k) throws SQLException {
+      List<Object> params = new ArrayList<Object>();
+      String query = "SELECT r.hotelID, h.hotelName, r.roomNumber, r.roomType, r.capacity, r.price, r.amenities ";
+      query += "FROM Rooms r JOIN Hotel h ON h.hotelID = r.hotelID ";
+      query += "WHERE r.price BETWEEN ? AND ? AND r.capacity >= ? ";
+      params.add(minPrice);
+      params.add(maxPrice);
+      params.add(minCapacity);
+      if (roomType != null) {
+         // compared as char(10) like the column, a text parameter would hide the index
+         query += "AND r.roomType = CAST(? AS char(10)) ";
+         params.add(roomType);
+      }
+      if (amenities != 0) {
+         // one literal test per amenity, so the planner can match the partial indexes
+         for (int bit = 0; bit < AMENITIES.length; bit++)
+            if ((amenities & (1 << bit)) != 0)
+               query += "AND r.amenities & " + (1 << bit) + " <> 0 ";
+      }
+      if (date != null) {
+         query += "AND NOT EXISTS (SELECT 1 FROM RoomBookings b WHERE b.hotelID = r.hotelID AND b.roomNumber = r.roomNumber ";
+         query += "AND b.bookingDate = CAST(? AS date)) ";
+         query += "AND NOT EXISTS (SELECT 1 FROM RoomRepairs p WHERE p.hotelID = r.hotelID AND p.roomNumber = r.roomNumber ";
+         query += "AND p.repairDate = CAST(? AS date)) ";
+         params.add(date);
+         params.add(date);
+      }
+      query += "ORDER BY " + order.orderBy + " LIMIT ?";
+      params.add(k);
+
+      Comparator<List<String>> byPrice = Comparator.comparing((List<String> row) -> Integer.valueOf(row.get(5)));
+      Comparator<List<String>> byRoom = Comparator.comparing((List<String> row) -> Integer.valueOf(row.get(0)))
+         .thenComparing(row -> Integer.valueOf(row.get(2)));
+      Comparator<List<String>> merge;
+      switch (order) {
+         case PRICIEST: merge = byPrice.reversed().thenComparing(byRoom.reversed()); break;
+         case LARGEST: merge = Comparator.comparing((List<String> row) -> Integer.valueOf(row.get(4))).reversed()
+            .thenComparing(byPrice).thenComparing(byRoom); break;
+         default: merge = byPrice.thenComparing(byRoom); break;
+      }
+      List<List<String>> result = esql.executeQueryOnAllShards(query, merge, k, params.toArray());
+      for (List<String> row : result) {
+         row.set(3, row.get(3).trim());
+         row.set(6, amenityNames(Integer.parseInt(row.get(6))));
+      }
+      return result;
+   }
+
+   /**
+    * @return the names of the AMENITIES bits set in the mask, comma separated
+    */
+   public static String amenityNames(int amenities) {
+      StringBuilder names = new StringBuilder();
+      for (int bit = 0; bit < AMENITIES.length; bit++) {
+         if ((amenities & (1 << bit)) != 0)
+            names.append(names.length() == 0 ? "" : ", ").append(AMENITIES[bit]);
+      }
+      return names.toString();
+   }
+
+   /**
+    * Reads a room type by its number in ROOM_TYPES.
+    *
+    * @param allowAny accept 0 for any type
+    * @return the room type, or null for any type
+    */
+   public static String readRoomType(boolean allowAny) {
+      while (true) {
+         if (allowAny)
+            System.out.println("\t0. Any type");
+         for (int i = 0; i < ROOM_TYPES.length; i++)
+            System.out.println("\t" + (i + 1) + ". " + ROOM_TYPES[i]);
+         int choice = readChoice();
+         if (allowAny && choice == 0)
+            return null;
+         if (choice >= 1 && choice <= ROOM_TYPES.length)
+            return ROOM_TYPES[choice - 1];
+         System.out.println(ANSI_RED + "\tUnrecognized room type!" + ANSI_RESET);
+      }
+   }
+
+   /**
+    * Reads a set of amenities as their numbers in AMENITIES, e.g. "1 3".
+    *
+    * @return the AMENITIES bits of the chosen amenities, 0 for none
+    */
+   public static int readAmenities() throws IOException {
+      while (true) {
+         for (int i = 0; i < AMENITIES.length; i++)
+            System.out.println("\t" + (i + 1) + ". " + AMENITIES[i]);
+         System.out.print("\tEnter the numbers separated by spaces, or nothing for none: ");
+         String line = in.readLine();
+         int amenities = 0;
+         boolean valid = true;
+         for (String number : line.trim().split("[\\s,]+")) {
+            if (number.isEmpty())
+               continue;
+            if (!number.matches("\\d+") || Integer.parseInt(number) < 1 || Integer.parseInt(number) > AMENITIES.length) {
+               valid = false;
+               break;
+            }
+            amenities |= 1 << (Integer.parseInt(number) - 1);
+         }
+         if (valid)
+            return amenities;
+         System.out.println(ANSI_RED + "\tUnrecognized amenity: " + line + ANSI_RESET);
+      }
+   }
+
+   public static void searchRoomsByFeatures(Hotel esql) {
+      try{
+         esql.setOperation("filterRooms");
+         String minPrice = null;
+         while(minPrice == null){
+            System.out.print("\tLowest price per night: $: ");
+            minPrice = readInt();
+         }
+         String maxPrice = null;
+         while(maxPrice == null){
+            System.out.print("\tHighest price per night: $: ");
+            maxPrice = readInt();
+         }
+         System.out.println("\tRoom type");
+         String roomType = readRoomType(true);
+         String capacity = null;
+         while(capacity == null){
+            System.out.print("\tNumber of guests: ");
+            capacity = readInt();
+         }
+         System.out.println("\tRequired amenities");
+         int amenities = readAmenities();
+         System.out.print("\tOnly rooms free on a night? (y/n): ");
+         String date = null;
+         if (in.readLine().trim().equalsIgnoreCase("y")) {
+            while(date == null){
+               date = getValidDate(esql);
+            }
+         }
+         String k = null;
+         while(k == null){
+            System.out.print("\tNumber of rooms to show: ");
+            k = readInt();
+         }
+         System.out.println("\t1. Cheapest first");
+         System.out.println("\t2. Most expensive first");
+         System.out.println("\t3. Largest first");
+         int choice = readChoice();
+         RoomOrder order = choice == 2 ? RoomOrder.PRICIEST : choice == 3 ? RoomOrder.LARGEST : RoomOrder.CHEAPEST;
+
+         List<List<String>> output = filterRooms(esql, Integer.parseInt(minPrice), Integer.parseInt(maxPrice), roomType,
+            Integer.parseInt(capacity), amenities, date, order, Integer.parseInt(k));
+         int rowCount = output.size();
+
+         System.out.printf("\n\n\n\n\n------------------------------------------------------------------------------------------------------------------------\n");
+         String title = String.format("|" + ANSI_YELLOW + "                                          Rooms from $%-7s to $%-7s                                          " + ANSI_RESET + "|", minPrice, maxPrice);
+         System.out.println(title);
+         System.out.printf("------------------------------------------------------------------------------------------------------------------------\n");
+         System.out.printf("| %8s | %-30s | %11s | %-8s | %6s | %7s | %-28s |%n", "Hotel ID", "Hotel Name", "Room Number", "Type", "Guests", "Price", "Amenities");
+         System.out.printf("------------------------------------------------------------------------------------------------------------------------\n");
+         for(int i = 0; i < rowCount; i++){
+            List<String> row = output.get(i);
+            System.out.printf("| %8s | %-30s | %11s | %-8s | %6s | %7s | %-28s |%n", row.get(0), row.get(1), row.get(2), row.get(3), row.get(4), row.get(5), row.get(6));
+         }
+         System.out.printf("------------------------------------------------------------------------------------------------------------------------\n\n");
+         promptEnterKey();
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+   /**
+    * Books one night of a room and reads the reservation back in one transaction.
+    *
+    * @return one row of bookingID, customerID, hotelID, roomNumber, bookingDate, price
+    */
+   public static List<List<String>> bookRoom(Hotel esql, String userID, String hotelID, String roomNum, String date) throws SQLException {
+      esql.useShardOf(hotelID);
+      final Object[] booking = { Integer.valueOf(userID), Integer.valueOf(hotelID), Integer.valueOf(roomNum), date };
+      return esql.inTransaction(Isolation.READ_COMMITTED, tx -> {
+         String bookingQuery = "INSERT INTO RoomBookings(customerID, hotelID, roomNumber, bookingDate) VALUES (?, ?, ?, CAST(? AS date)) RETURNING bookingID ";
+         String bookingID = tx.executeQueryAndReturnResult(bookingQuery, booking).get(0).get(0);
+
+         String reservation = "SELECT b.bookingID, b.customerID, b.hotelID, b.roomNumber, b.bookingDate, r.price FROM RoomBookings b, Rooms r WHERE ";
+         reservation += "bookingID = " + bookingID + " AND r.hotelID = b.hotelID AND r.roomNumber = b.roomNumber";
+         return tx.executeQueryAndReturnResult(reservation);
+      });
+   }
+
    public static void bookRooms(Hotel esql, String userID) {
       try{
+         esql.setOperation("bookRooms");
          String hotelID = null;
          while(hotelID == null){
             hotelID = getValidHotelID(esql);
          }
+         esql.useShardOf(hotelID);
          System.out.println();      
          String roomNum = null;
          while(roomNum == null){
@@ -710,23 +1798,16 @@ public class Hotel {
             int row = 1;
             while(row != 0){
                date = getValidDate(esql);
-               row = esql.executeQuery("SELECT bookingDate FROM roomBookings WHERE bookingDate = '" + date + "' AND roomNumber = "+ roomNum + " AND HotelID = " + hotelID);
+               row = esql.executeQuery("SELECT bookingDate FROM roomBookings WHERE bookingDate = CAST(? AS date) AND roomNumber = ? AND HotelID = ? "
+                  + "UNION ALL SELECT repairDate FROM RoomRepairs WHERE repairDate = CAST(? AS date) AND roomNumber = ? AND hotelID = ?",
+                  date, Integer.valueOf(roomNum), Integer.valueOf(hotelID), date, Integer.valueOf(roomNum), Integer.valueOf(hotelID));
                if (row != 0){
                   System.out.println(ANSI_RED + String.format("\tRoom %s at Hotel ID %s is not available on %s", roomNum, hotelID, date) + ANSI_RESET);
                }
             }
          }
 
-         String bookingQuery = "INSERT INTO RoomBookings(customerID, hotelID, roomNumber, bookingDate) VALUES (";
-         bookingQuery += userID + ", ";
-         bookingQuery += hotelID + ", ";
-         bookingQuery += roomNum + ", '";
-         bookingQuery += date + "') RETURNING bookingID ";
-         String bookingID = esql.executeQueryAndReturnResult(bookingQuery).get(0).get(0);
-
-         String reservation = "SELECT b.bookingID, b.customerID, b.hotelID, b.roomNumber, b.bookingDate, r.price FROM RoomBookings b, Rooms r WHERE ";
-         reservation += "bookingID = " + bookingID + " AND r.hotelID = b.hotelID AND r.roomNumber = b.roomNumber";
-         List<List<String>> output = esql.executeQueryAndReturnResult(reservation);
+         List<List<String>> output = bookRoom(esql, userID, hotelID, roomNum, date);
 
          System.out.printf("\n\n\n\n\n------------------------------------------------------------------------------\n");
          System.out.printf("|" + ANSI_YELLOW + "                              Your Reservatoin                              " + ANSI_RESET + "|\n");
@@ -740,13 +1821,205 @@ public class Hotel {
          System.err.println (e.getMessage());
       }
    }
+   /**
+    * @return the customer's 5 latest rows of bookingID, hotelID, roomNumber, bookingDate, price
+    */
+   public static List<List<String>> recentBookings(Hotel esql, String userID) throws SQLException {
+      String histortQuery = "SELECT b.bookingID, b.hotelID, b.roomNumber, b.bookingDate, r.price FROM RoomBookings b, Rooms r WHERE b.customerID = ";
+      histortQuery += userID;
+      histortQuery += " AND r.hotelID = b.hotelID AND r.roomNumber = b.roomNumber ORDER BY b.bookingDate DESC LIMIT 5";
+      return esql.executeQueryOnAllShards(histortQuery, descendingBy(3), 5);
+   }
+
+   /**
+    * Outcome of a group booking: either every night was booked, or none
+    * was and the nights that could not be booked are listed.
+    */
+   public static class GroupBooking {
+      // rows of bookingID, roomNumber, bookingDate, price
+      public final List<List<String>> booked;
+      // rows of roomNumber, bookingDate that were already taken or under repair
+      public final List<List<String>> conflicts;
+      public final String message;
+
+      GroupBooking(List<List<String>> booked, List<List<String>> conflicts, String message) {
+         this.booked = booked;
+         this.conflicts = conflicts;
+         this.message = message;
+      }
+
+      public boolean succeeded() {
+         return conflicts.isEmpty() && message == null;
+      }
+   }//end GroupBooking
+
+   /**
+    * Books every (roomNumber, date) pair of one hotel with a single
+    * statement, so either all nights are booked or none is. When a night is
+    * taken the statement fails on the booking slot index, or on the
+    * checkRoomRepair trigger when the room is under repair, and one more
+    * query returns exactly which nights conflicted.
+    *
+    * @param nights pairs of roomNumber and date (MM/DD/YYYY)
+    * @return the booked rows, or the conflicting nights
+    */
+   public static GroupBooking bookGroup(Hotel esql, String userID, String hotelID, List<String[]> nights) throws SQLException {
+      esql.useShardOf(hotelID);
+      DateTimeFormatter format = DateTimeFormatter.ofPattern("MM/dd/yyyy", Locale.ENGLISH);
+      // the same night asked twice would conflict with itself
+      Set<String> seen = new HashSet<String>();
+      List<Integer> rooms = new ArrayList<Integer>();
+      List<String> dates = new ArrayList<String>();
+      for (String[] night : nights) {
+         String date = LocalDate.parse(night[1].trim(), format).toString();
+         if (seen.add(night[0].trim() + "/" + date)) {
+            rooms.add(Integer.valueOf(night[0].trim()));
+            dates.add(date);
+         }
+      }
+      Integer[] roomArray = rooms.toArray(new Integer[0]);
+      String[] dateArray = dates.toArray(new String[0]);
+
+      String query = "WITH booked AS (INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate) ";
+      query += "SELECT ?, ?, n.roomNumber, n.bookingDate FROM unnest(CAST(? AS integer[]), CAST(? AS date[])) AS n(roomNumber, bookingDate) ";
+      query += "RETURNING bookingID, hotelID, roomNumber, bookingDate) ";
+      query += "SELECT b.bookingID, b.roomNumber, b.bookingDate, r.price FROM booked b, Rooms r ";
+      query += "WHERE r.hotelID = b.hotelID AND r.roomNumber = b.roomNumber ORDER BY b.bookingDate, b.roomNumber";
+      try{
+         List<List<String>> booked = esql.executeQueryAndReturnResult(query, Integer.valueOf(userID), Integer.valueOf(hotelID), roomArray, dateArray);
+         return new GroupBooking(booked, new ArrayList<List<String>>(), null);
+      }catch (SQLException e){
+         // unique_violation on a booked or repaired night, nothing was inserted
+         if (!"23505".equals(e.getSQLState()))
+            throw e;
+      }
+      String conflictQuery = "SELECT n.roomNumber, n.bookingDate FROM unnest(CAST(? AS integer[]), CAST(? AS date[])) AS n(roomNumber, bookingDate) ";
+      conflictQuery += "WHERE EXISTS (SELECT 1 FROM RoomBookings b WHERE b.hotelID = ? AND b.roomNumber = n.roomNumber AND b.bookingDate = n.bookingDate) ";
+      conflictQuery += "OR EXISTS (SELECT 1 FROM RoomRepairs p WHERE p.hotelID = ? AND p.roomNumber = n.roomNumber AND p.repairDate = n.bookingDate) ";
+      conflictQuery += "ORDER BY n.bookingDate, n.roomNumber";
+      List<List<String>> conflicts = esql.executeQueryAndReturnResult(conflictQuery, roomArray, dateArray, Integer.valueOf(hotelID), Integer.valueOf(hotelID));
+      return new GroupBooking(new ArrayList<List<String>>(), conflicts,
+         conflicts.isEmpty() ? "Another booking took one of the rooms, please try again." : null);
+   }
+
+   /**
+    * Books the given number of rooms for every night from startDate to
+    * endDate, choosing the cheapest rooms that are free for the whole stay.
+    *
+    * @return the booked rows, or a message if not enough rooms are free
+    */
+   public static GroupBooking bookGroup(Hotel esql, String userID, String hotelID, int roomCount, String startDate, String endDate) throws SQLException {
+      if (roomCount < 1)
+         return new GroupBooking(new ArrayList<List<String>>(), new ArrayList<List<String>>(),
+            "The number of rooms must be at least 1.");
+      esql.useShardOf(hotelID);
+      String query = "SELECT r.roomNumber FROM Rooms r WHERE r.hotelID = ? AND NOT EXISTS (SELECT 1 FROM RoomBookings b ";
+      query += "WHERE b.hotelID = r.hotelID AND b.roomNumber = r.roomNumber AND b.bookingDate BETWEEN CAST(? AS date) AND CAST(? AS date)) ";
+      query += "AND NOT EXISTS (SELECT 1 FROM RoomRepairs p ";
+      query += "WHERE p.hotelID = r.hotelID AND p.roomNumber = r.roomNumber AND p.repairDate BETWEEN CAST(? AS date) AND CAST(? AS date)) ";
+      query += "ORDER BY r.price, r.roomNumber LIMIT ?";
+      List<List<String>> free = esql.executeQueryAndReturnResult(query, Integer.valueOf(hotelID), startDate, endDate, startDate, endDate, Integer.valueOf(roomCount));
+      if (free.size() < roomCount)
+         return new GroupBooking(new ArrayList<List<String>>(), new ArrayList<List<String>>(),
+            String.format("Only %d rooms at Hotel ID %s are free for the whole stay.", free.size(), hotelID));
+
+      DateTimeFormatter format = DateTimeFormatter.ofPattern("MM/dd/yyyy", Locale.ENGLISH);
+      LocalDate last = LocalDate.parse(endDate, format);
+      List<String[]> nights = new ArrayList<String[]>();
+      for (LocalDate d = LocalDate.parse(startDate, format); !d.isAfter(last); d = d.plusDays(1)) {
+         for (List<String> room : free)
+            nights.add(new String[] { room.get(0), d.format(format) });
+      }
+      return bookGroup(esql, userID, hotelID, nights);
+   }
+
+   public static void bookGroupRooms(Hotel esql, String userID) {
+      try{
+         esql.setOperation("bookGroup");
+         String hotelID = null;
+         while(hotelID == null){
+            hotelID = getValidHotelID(esql);
+         }
+         esql.useShardOf(hotelID);
+         System.out.println();
+         String startDate = null;
+         String endDate = null;
+         while(endDate == null){
+            System.out.println("\tFirst night");
+            startDate = getValidDate(esql);
+            System.out.println("\tLast night");
+            endDate = getValidDate(esql);
+            DateTimeFormatter format = DateTimeFormatter.ofPattern("MM/dd/yyyy", Locale.ENGLISH);
+            if (LocalDate.parse(endDate, format).isBefore(LocalDate.parse(startDate, format))){
+               System.out.println(ANSI_RED + "\tThe last night cannot be before the first night." + ANSI_RESET);
+               endDate = null;
+            }
+         }
+         System.out.println();
+         System.out.println("\t1. Choose the room numbers");
+         System.out.println("\t2. Choose the number of rooms");
+         GroupBooking result;
+         if (readChoice() == 1) {
+            List<String> roomNums = new ArrayList<String>();
+            String roomNum = "";
+            while(roomNum != null){
+               System.out.println("\tAdd a room, or an empty line when done");
+               System.out.print("\tEnter Room Number: ");
+               roomNum = in.readLine().trim();
+               if (roomNum.isEmpty()) {
+                  if (!roomNums.isEmpty())
+                     roomNum = null;
+               }else if (roomNum.matches("\\d+") && esql.executeQuery("SELECT roomNumber FROM Rooms WHERE hotelID = ? AND roomNumber = ?", Integer.valueOf(hotelID), Integer.valueOf(roomNum)) > 0) {
+                  roomNums.add(roomNum);
+               }else {
+                  System.out.print(ANSI_RED + "\tInvalid Room Number.\n" + ANSI_RESET);
+               }
+            }
+            DateTimeFormatter format = DateTimeFormatter.ofPattern("MM/dd/yyyy", Locale.ENGLISH);
+            LocalDate last = LocalDate.parse(endDate, format);
+            List<String[]> nights = new ArrayList<String[]>();
+            for (LocalDate d = LocalDate.parse(startDate, format); !d.isAfter(last); d = d.plusDays(1)) {
+               for (String room : roomNums)
+                  nights.add(new String[] { room, d.format(format) });
+            }
+            result = bookGroup(esql, userID, hotelID, nights);
+         }else {
+            String roomCount = null;
+            while(roomCount == null){
+               System.out.print("\tNumber of rooms: ");
+               roomCount = readInt();
+            }
+            result = bookGroup(esql, userID, hotelID, Integer.parseInt(roomCount), startDate, endDate);
+         }
+
+         if (result.succeeded()) {
+            System.out.printf("\n\n\n\n\n-----------------------------------------------------\n");
+            System.out.printf("|" + ANSI_YELLOW + "               Your Group Reservation              " + ANSI_RESET + "|\n");
+            System.out.printf("-----------------------------------------------------\n");
+            System.out.printf("| %10s | %11s | %12s | %7s |%n", "Booking ID", "Room Number", "Booking Date", "Price");
+            System.out.printf("-----------------------------------------------------\n");
+            for (List<String> row : result.booked) {
+               System.out.printf("| %10s | %11s | %12s | %7s |%n", row.get(0), row.get(1), row.get(2), row.get(3));
+            }
+            System.out.printf("-----------------------------------------------------\n\n");
+         }else if (result.message != null) {
+            System.out.println(ANSI_RED + "\t" + result.message + ANSI_RESET);
+         }else {
+            System.out.println(ANSI_RED + "\tNothing was booked, these nights are not available:" + ANSI_RESET);
+            for (List<String> row : result.conflicts) {
+               System.out.println(ANSI_RED + String.format("\tRoom %s on %s", row.get(0), row.get(1)) + ANSI_RESET);
+            }
+         }
+         promptEnterKey();
+      }catch(Exception e){
+         System.err.println (e.getMessage());
+      }
+   }
+
    public static void viewRecentBookingsfromCustomer(Hotel esql, String userID) {
       try{
-         String histortQuery = "SELECT b.bookingID, b.hotelID, b.roomNumber, b.bookingDate, r.price FROM RoomBookings b, Rooms r WHERE b.customerID = ";
-         histortQuery += userID;
-         histortQuery += " AND r.hotelID = b.hotelID AND r.roomNumber = b.roomNumber ORDER BY b.bookingDate DESC LIMIT 5";
-         
-         List<List<String>> output = esql.executeQueryAndReturnResult(histortQuery);
+         esql.setOperation("viewRecentBookingsfromCustomer");
+         List<List<String>> output = recentBookings(esql, userID);
          int rowCount = output.size();
 
          System.out.printf("\n\n\n\n\n----------------------------------------------------------------\n");
@@ -765,6 +2038,7 @@ public class Hotel {
    }
    public static void updateRoomInfo(Hotel esql, String userID) {
       try{
+         esql.setOperation("updateRoomInfo");
          boolean keepon = true;
          boolean badchoice = false;
          while(keepon) {
@@ -779,6 +2053,7 @@ public class Hotel {
                   }
                }
             }
+            esql.useShardOf(hotelID);
             System.out.println();      
             String roomNum = null;
             while(roomNum == null){
@@ -793,7 +2068,7 @@ public class Hotel {
                System.out.println("----------------------------------------------------------"); 
                System.out.println("| 1. Update Price                                        |");
                System.out.println("| 2. Update Image URL                                    |");
-               System.out.println("|                                                        |");
+               System.out.println("| 3. Update room type, guests and amenities              |");
                System.out.println("|                                                        |");
                System.out.println("----------------------------------------------------------");
                System.out.println("| 8. Update other room.                                  |");
@@ -815,12 +2090,11 @@ public class Hotel {
                      priceQuery += newPrice;
                      priceQuery += " WHERE hotelID = " + hotelID;
                      priceQuery += " AND roomNumber = " + roomNum;
-                     esql.executeUpdate(priceQuery);
 
                      String showPriceResult = "SELECT * FROM Rooms ";
                      showPriceResult += " WHERE hotelID = " + hotelID;
                      showPriceResult += " AND roomNumber = " + roomNum;
-                     List<List<String>> priceOutput = esql.executeQueryAndReturnResult(showPriceResult);
+                     List<List<String>> priceOutput = updateAndShow(esql, priceQuery, showPriceResult);
 
                      System.out.printf("\n\n\n\n\n---------------------------------------------------------------------\n");
                      System.out.printf("|" + ANSI_YELLOW + "                           Updated Info                            " + ANSI_RESET + "|\n");
@@ -838,12 +2112,11 @@ public class Hotel {
                      urlQuery += newUrl + "'";
                      urlQuery += " WHERE hotelID = " + hotelID;
                      urlQuery += " AND roomNumber = " + roomNum;
-                     esql.executeUpdate(urlQuery);
 
                      String showUrlResult = "SELECT * FROM Rooms ";
                      showUrlResult += " WHERE hotelID = " + hotelID;
                      showUrlResult += " AND roomNumber = " + roomNum;
-                     List<List<String>> urlOutput = esql.executeQueryAndReturnResult(showUrlResult);
+                     List<List<String>> urlOutput = updateAndShow(esql, urlQuery, showUrlResult);
 
                      System.out.printf("\n\n\n\n\n---------------------------------------------------------------------\n");
                      System.out.printf("|" + ANSI_YELLOW + "                           Updated Info                            " + ANSI_RESET + "|\n");
@@ -854,6 +2127,27 @@ public class Hotel {
                      System.out.printf("---------------------------------------------------------------------\n\n");
                      promptEnterKey();
                      break;
+                  case 3:
+                     System.out.println("\tRoom type");
+                     String newType = readRoomType(false);
+                     String newCapacity = null;
+                     while(newCapacity == null){
+                        System.out.print("\tNumber of guests: ");
+                        newCapacity = readInt();
+                     }
+                     System.out.println("\tAmenities");
+                     int newAmenities = readAmenities();
+                     List<List<String>> featureOutput = updateRoomFeatures(esql, hotelID, roomNum, newType, Integer.parseInt(newCapacity), newAmenities);
+
+                     System.out.printf("\n\n\n\n\n---------------------------------------------------------------------\n");
+                     System.out.printf("|" + ANSI_YELLOW + "                           Updated Info                            " + ANSI_RESET + "|\n");
+                     System.out.printf("---------------------------------------------------------------------\n");
+                     System.out.printf("| %8s | %11s | %-8s | %6s | %-19s |%n", "Hotel ID", "Room Number", "Type", "Guests", "Amenities");
+                     System.out.printf("---------------------------------------------------------------------\n");
+                     System.out.printf("| %8s | %11s | %-8s | %6s | %-19s |%n", featureOutput.get(0).get(0), featureOutput.get(0).get(1), featureOutput.get(0).get(2).trim(), featureOutput.get(0).get(3), amenityNames(Integer.parseInt(featureOutput.get(0).get(4))));
+                     System.out.printf("---------------------------------------------------------------------\n\n");
+                     promptEnterKey();
+                     break;
                   case 8: updateMenu = false; break;
                   case 9: updateMenu = false; keepon = false; break;
                   default : badchoice = true; break;
@@ -864,11 +2158,47 @@ public class Hotel {
          System.err.println(e.getMessage());
       }
    }
+
+   /**
+    * Runs a room update, its log trigger and the read back as one transaction.
+    */
+   public static List<List<String>> updateAndShow(Hotel esql, final String update, final String show) throws SQLException {
+      return esql.inTransaction(Isolation.READ_COMMITTED, tx -> {
+         tx.executeUpdate(update);
+         return tx.executeQueryAndReturnResult(show);
+      });
+   }
+
+   /**
+    * Sets a room's type, capacity and amenities and reads them back in one
+    * transaction, which the roomUpdateLog trigger also logs.
+    *
+    * @return one row of hotelID, roomNumber, roomType, capacity, amenities
+    */
+   public static List<List<String>> updateRoomFeatures(Hotel esql, final String hotelID, final String roomNum,
+         final String roomType, final int capacity, final int amenities) throws SQLException {
+      esql.useShardOf(hotelID);
+      return esql.inTransaction(Isolation.READ_COMMITTED, tx -> {
+         tx.executeUpdate("UPDATE Rooms SET roomType = ?, capacity = ?, amenities = ? WHERE hotelID = ? AND roomNumber = ?",
+            roomType, capacity, amenities, Integer.valueOf(hotelID), Integer.valueOf(roomNum));
+         return tx.executeQueryAndReturnResult("SELECT hotelID, roomNumber, roomType, capacity, amenities FROM Rooms "
+            + "WHERE hotelID = ? AND roomNumber = ?", Integer.valueOf(hotelID), Integer.valueOf(roomNum));
+      });
+   }
+
+   /**
+    * @return the manager's 5 latest RoomUpdatesLog rows
+    */
+   public static List<List<String>> recentUpdates(Hotel esql, String userID) throws SQLException {
+      String updateLogQuery = "SELECT * FROM RoomUpdatesLog WHERE managerID = ";
+      updateLogQuery += userID + " ORDER BY updatedOn DESC LIMIT 5";
+      return esql.executeQueryOnAllShards(updateLogQuery, descendingBy(4), 5);
+   }
+
    public static void viewRecentUpdates(Hotel esql, String userID) {
       try{
-         String updateLogQuery = "SELECT * FROM RoomUpdatesLog WHERE managerID = ";
-         updateLogQuery += userID + " ORDER BY updatedOn DESC LIMIT 5";
-         List<List<String>> output = esql.executeQueryAndReturnResult(updateLogQuery);
+         esql.setOperation("viewRecentUpdates");
+         List<List<String>> output = recentUpdates(esql, userID);
          int rowCount = output.size();
 
          System.out.printf("\n\n\n\n\n-----------------------------------------------------------------------------\n");
@@ -885,8 +2215,21 @@ public class Hotel {
          System.err.println(e.getMessage());
       }
    }
+   /**
+    * @return rows of bookingID, customer name, hotelID, roomNumber, bookingDate, price
+    *         for the manager's hotels between the two dates, newest first
+    */
+   public static List<List<String>> bookingHistory(Hotel esql, String userID, String startDate, String endDate) throws SQLException {
+      String query = "SELECT b.bookingID, u.name, b.hotelID, b.roomNumber, b.bookingDate, r.price FROM RoomBookings b, Hotel h, Rooms r, Users u WHERE b.bookingDate BETWEEN '";
+      query += startDate + "' AND '" + endDate + "' AND h.managerUserID = ";
+      query += userID;
+      query += " AND h.hotelID = b.hotelID AND b.hotelID = r.hotelID AND u.userID = b.customerID AND b.roomNumber = r.roomNumber ORDER By b.bookingDate DESC";
+      return esql.executeQueryOnAllShards(query, descendingBy(4), 0);
+   }
+
    public static void viewBookingHistoryofHotel(Hotel esql, String userID) {
       try{
+         esql.setOperation("viewBookingHistoryofHotel");
          boolean startDateFormatCheck = true;
          String startDate = null;
          while (startDateFormatCheck) {
@@ -911,11 +2254,7 @@ public class Hotel {
             }
          }
          
-         String query = "SELECT b.bookingID, u.name, b.hotelID, b.roomNumber, b.bookingDate, r.price FROM RoomBookings b, Hotel h, Rooms r, Users u WHERE b.bookingDate BETWEEN '";
-         query += startDate + "' AND '" + endDate + "' AND h.managerUserID = ";
-         query += userID;
-         query += " AND h.hotelID = b.hotelID AND b.hotelID = r.hotelID AND u.userID = b.customerID AND b.roomNumber = r.roomNumber ORDER By b.bookingDate DESC";
-         List<List<String>> output = esql.executeQueryAndReturnResult(query);
+         List<List<String>> output = bookingHistory(esql, userID, startDate, endDate);
          int rowCount = output.size();
 
          System.out.printf("\n\n\n\n\n---------------------------------------------------------------------------------------------------------------------\n");
@@ -933,8 +2272,20 @@ public class Hotel {
          System.err.println(e.getMessage());
       }
    }
+   /**
+    * @return rows of userID, name, numberOfBooking for the hotel's top 5 customers
+    */
+   public static List<List<String>> regularCustomers(Hotel esql, String hotelID) throws SQLException {
+      esql.useShardOf(hotelID);
+      String query = "SELECT u.userID, u.name, COUNT(*) AS numberOfBooking FROM Users u, RoomBookings b WHERE ";
+      query += "b.hotelID = " + hotelID;
+      query += " AND b.customerID = u.userID GROUP BY u.userID, u.name ORDER BY numberOfBooking DESC LIMIT 5";
+      return esql.executeQueryAndReturnResult(query);
+   }
+
    public static void viewRegularCustomers(Hotel esql, String userID) {
       try{
+         esql.setOperation("viewRegularCustomers");
          String hotelID = null;
          while(hotelID == null){
             int row = 0;
@@ -946,11 +2297,9 @@ public class Hotel {
                }
             }
          }
+         esql.useShardOf(hotelID);
 
-         String query = "SELECT u.userID, u.name, COUNT(*) AS numberOfBooking FROM Users u, RoomBookings b WHERE ";
-         query += "b.hotelID = " + hotelID;
-         query += " AND b.customerID = u.userID GROUP BY u.userID, u.name ORDER BY numberOfBooking DESC LIMIT 5";
-         List<List<String>> output = esql.executeQueryAndReturnResult(query);
+         List<List<String>> output = regularCustomers(esql, hotelID);
          int rowCount = output.size();
         
          System.out.printf("\n\n\n\n\n--------------------------------------------------------------------------------\n");
@@ -968,8 +2317,34 @@ public class Hotel {
          System.err.println(e.getMessage());
       }
    }
+   /**
+    * Places a repair with the given company for today. The checkRoomBooking
+    * trigger locks the room like RepairScheduler does and rejects the repair
+    * with a unique_violation if the room is booked tonight.
+    *
+    * @return one row of repairID, companyID, hotelID, roomNumber, repairDate
+    */
+   public static List<List<String>> placeRepair(Hotel esql, String companyID, String hotelID, String roomNum) throws SQLException {
+      esql.useShardOf(hotelID);
+      String repairRequest = "INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate) VALUES (";
+      repairRequest += companyID + ", ";
+      repairRequest += hotelID + ", ";
+      repairRequest += roomNum + ", CURRENT_DATE) RETURNING repairID";
+      final String insertRepair = repairRequest;
+
+      // the insert, its two triggers and the read back commit together.
+      return esql.inTransaction(Isolation.READ_COMMITTED, tx -> {
+         String repairID = tx.executeQueryAndReturnResult(insertRepair).get(0).get(0);
+
+         String requestRecord = "SELECT * FROM RoomRepairs WHERE repairID = ";
+         requestRecord += repairID;
+         return tx.executeQueryAndReturnResult(requestRecord);
+      });
+   }
+
    public static void placeRoomRepairRequests(Hotel esql, String userID) {
       try{
+         esql.setOperation("placeRoomRepairRequests");
          String hotelID = null;
          while(hotelID == null){
             int row = 0;
@@ -981,6 +2356,7 @@ public class Hotel {
                }
             }
          }
+         esql.useShardOf(hotelID);
          System.out.println();      
          String roomNum = null;
          while(roomNum == null){
@@ -991,25 +2367,39 @@ public class Hotel {
          while(companyID == null){
             int row = 0;
             while(row == 0){
-               System.out.print("\tEnter Company ID: ");
-            companyID = readInt();
+               System.out.print("\tEnter Company ID (leave blank to assign automatically): ");
+               companyID = in.readLine().trim();
+               if (companyID.isEmpty())
+                  break;
+               if (!companyID.matches("\\d+")){
+                  System.out.println(ANSI_RED + "\tYour input is invalid!" + ANSI_RESET);
+                  continue;
+               }
                row = esql.executeQuery("SELECT companyID FROM MaintenanceCompany WHERE companyID = " + companyID);
                if (row == 0){
                   System.out.println(ANSI_RED + String.format("\tInvalid Repair Company ID." + ANSI_RESET));
                }
             }
          }
-         
-         String repairRequest = "INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate) VALUES (";
-         repairRequest += companyID + ", ";
-         repairRequest += hotelID + ", ";
-         repairRequest += roomNum + ", CURRENT_DATE) RETURNING repairID";
-
-         String repairID = esql.executeQueryAndReturnResult(repairRequest).get(0).get(0);
 
-         String requestRecord = "SELECT * FROM RoomRepairs WHERE repairID = ";
-         requestRecord += repairID;
-         List<List<String>> output = esql.executeQueryAndReturnResult(requestRecord);
+         List<List<String>> output;
+         if (companyID.isEmpty()) {
+            // the least loaded company takes it on the first day the room is free
+            RepairScheduler scheduler = RepairScheduler.fromSystemProperties(esql, LocalDate.now());
+            List<RepairScheduler.Request> request = new ArrayList<RepairScheduler.Request>();
+            request.add(new RepairScheduler.Request(Integer.parseInt(hotelID), Integer.parseInt(roomNum)));
+            RepairScheduler.Result result = scheduler.schedule(request);
+            if (result.error != null)
+               throw result.error;
+            output = result.scheduled;
+            if (output.isEmpty()) {
+               System.out.println(ANSI_RED + "\tNo company has a free day for this room within the scheduling horizon." + ANSI_RESET);
+               promptEnterKey();
+               return;
+            }
+         }else {
+            output = placeRepair(esql, companyID, hotelID, roomNum);
+         }
 
          System.out.printf("\n\n\n\n\n-----------------------------------------------------------------\n");
          System.out.printf("|" + ANSI_YELLOW + "                        Repair Request                         " + ANSI_RESET + "|\n");
@@ -1023,11 +2413,19 @@ public class Hotel {
          System.err.println(e.getMessage());
       }
    }
+   /**
+    * @return the RoomRepairs rows of the manager's hotels, newest first
+    */
+   public static List<List<String>> repairHistory(Hotel esql, String userID) throws SQLException {
+      String repairHistory = "SELECT r.repairid, r.companyid, r.hotelid, r.roomnumber, r.repairdate FROM RoomRepairs r, Hotel h WHERE r.hotelID = h.hotelID AND h.managerUserID = ";
+      repairHistory += userID + " ORDER BY r.repairdate DESC";
+      return esql.executeQueryOnAllShards(repairHistory, descendingBy(4), 0);
+   }
+
    public static void viewRoomRepairHistory(Hotel esql, String userID) {
       try{
-         String repairHistory = "SELECT r.repairid, r.companyid, r.hotelid, r.roomnumber, r.repairdate FROM RoomRepairs r, Hotel h WHERE r.hotelID = h.hotelID AND h.managerUserID = ";
-         repairHistory += userID + " ORDER BY r.repairdate DESC";
-         List<List<String>> output = esql.executeQueryAndReturnResult(repairHistory);
+         esql.setOperation("viewRoomRepairHistory");
+         List<List<String>> output = repairHistory(esql, userID);
          int rowCount = output.size();
 
          System.out.printf("\n\n\n\n\n-----------------------------------------------------------------\n");
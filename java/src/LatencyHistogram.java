@@ -0,0 +1,116 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear histogram in the style of HdrHistogram. Values
+ * are bucketed by their top 5 bits, so each bucket above 31 is 1/16 as wide
+ * as its lower bound and the whole range of a long fits in 960 counters.
+ * Percentiles report a bucket's upper bound, which overstates the value by
+ * at most 1/16 (about 6%) and never understates it. Recording never
+ * allocates and is safe to call from any number of threads.
+ *
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BUCKET_BITS = 5;
+   private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+   private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+   private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (64 - SUB_BUCKET_BITS - 1) * SUB_BUCKET_HALF;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT);
+
+   /**
+    * Records one value. Negative values are recorded as zero.
+    *
+    * @param value the value to record, usually microseconds
+    */
+   public void record(long value) {
+      _counts.incrementAndGet(indexOf(value < 0 ? 0 : value));
+   }//end record
+
+   /**
+    * @return the number of recorded values
+    */
+   public long count() {
+      long total = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++)
+         total += _counts.get(i);
+      return total;
+   }//end count
+
+   /**
+    * Returns the value at the given percentile. The result is the upper
+    * bound of the bucket holding that rank, so it never under-reports.
+    *
+    * @param percentile a percentile between 0 and 100
+    * @return the value at the percentile, or 0 if nothing was recorded
+    */
+   public long percentile(double percentile) {
+      long[] snapshot = new long[BUCKET_COUNT];
+      long total = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+         snapshot[i] = _counts.get(i);
+         total += snapshot[i];
+      }
+      if (total == 0)
+         return 0;
+      long rank = (long) Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+      if (rank < 1)
+         rank = 1;
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+         seen += snapshot[i];
+         if (seen >= rank)
+            return upperBoundOf(i);
+      }
+      return upperBoundOf(BUCKET_COUNT - 1);
+   }//end percentile
+
+   /**
+    * @return the largest recorded value, rounded up to its bucket bound
+    */
+   public long max() {
+      for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+         if (_counts.get(i) > 0)
+            return upperBoundOf(i);
+      }
+      return 0;
+   }//end max
+
+   /**
+    * Clears every bucket.
+    */
+   public void reset() {
+      for (int i = 0; i < BUCKET_COUNT; i++)
+         _counts.set(i, 0);
+   }//end reset
+
+   /**
+    * Adds every count of another histogram into this one.
+    *
+    * @param other the histogram to merge in
+    */
+   public void add(LatencyHistogram other) {
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+         long c = other._counts.get(i);
+         if (c != 0)
+            _counts.addAndGet(i, c);
+      }
+   }//end add
+
+   static int indexOf(long value) {
+      if (value < SUB_BUCKET_COUNT)
+         return (int) value;
+      int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+      int top = (int) (value >>> shift);
+      return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (top - SUB_BUCKET_HALF);
+   }//end indexOf
+
+   static long upperBoundOf(int index) {
+      if (index < SUB_BUCKET_COUNT)
+         return index;
+      int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+      long top = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+      return ((top + 1) << shift) - 1;
+   }//end upperBoundOf
+
+}//end LatencyHistogram
@@ -0,0 +1,176 @@
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of counters and latency histograms for every database call made
+ * through the Hotel query helpers. Calls are tagged with the logical
+ * operation that issued them (bookRooms, viewRooms, ...). After the first
+ * call of an operation its stats object is reused, so recording does not
+ * allocate.
+ *
+ */
+public class QueryMetrics {
+
+   /**
+    * Counters for one logical operation. Latencies are kept in microseconds.
+    */
+   public static class OperationStats {
+      final LongAdder calls = new LongAdder();
+      final LongAdder errors = new LongAdder();
+      final LongAdder rows = new LongAdder();
+      final LongAdder totalMicros = new LongAdder();
+      final LatencyHistogram latency = new LatencyHistogram();
+
+      public long calls() { return calls.sum(); }
+      public long errors() { return errors.sum(); }
+      public long rows() { return rows.sum(); }
+      public LatencyHistogram latency() { return latency; }
+   }//end OperationStats
+
+   private final ConcurrentHashMap<String, OperationStats> _operations = new ConcurrentHashMap<String, OperationStats>();
+   private final LatencyHistogram _connectionWait = new LatencyHistogram();
+   private final LongAdder _connections = new LongAdder();
+   private ScheduledExecutorService _reporter = null;
+
+   /**
+    * Records one database call.
+    *
+    * @param operation the logical operation that issued the call
+    * @param nanos the elapsed time of the call
+    * @param rows the number of rows returned or affected
+    * @param ok false when the call threw
+    */
+   public void record(String operation, long nanos, int rows, boolean ok) {
+      OperationStats stats = stats(operation);
+      long micros = nanos / 1000;
+      stats.calls.increment();
+      if (!ok)
+         stats.errors.increment();
+      stats.rows.add(rows);
+      stats.totalMicros.add(micros);
+      stats.latency.record(micros);
+   }//end record
+
+   /**
+    * Records the time spent waiting for a physical connection.
+    *
+    * @param nanos the elapsed time until the connection was available
+    */
+   public void recordConnectionWait(long nanos) {
+      _connections.increment();
+      _connectionWait.record(nanos / 1000);
+   }//end recordConnectionWait
+
+   /**
+    * @param operation the logical operation name
+    * @return the stats of that operation, created on first use
+    */
+   public OperationStats stats(String operation) {
+      OperationStats stats = _operations.get(operation);
+      if (stats == null) {
+         stats = new OperationStats();
+         OperationStats raced = _operations.putIfAbsent(operation, stats);
+         if (raced != null)
+            stats = raced;
+      }
+      return stats;
+   }//end stats
+
+   /**
+    * @return a human readable table of every operation seen so far
+    */
+   public String toText() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("%-28s %8s %6s %10s %10s %10s %10s %10s%n",
+         "Operation", "Calls", "Errors", "Rows", "Mean(us)", "p50(us)", "p99(us)", "Max(us)"));
+      for (Map.Entry<String, OperationStats> e : sorted().entrySet()) {
+         OperationStats s = e.getValue();
+         long calls = s.calls();
+         sb.append(String.format("%-28s %8d %6d %10d %10d %10d %10d %10d%n",
+            e.getKey(), calls, s.errors(), s.rows(),
+            calls == 0 ? 0 : s.totalMicros.sum() / calls,
+            s.latency.percentile(50), s.latency.percentile(99), s.latency.max()));
+      }
+      sb.append(String.format("%-28s %8d %6s %10s %10s %10d %10d %10d%n",
+         "(connection wait)", _connections.sum(), "", "", "",
+         _connectionWait.percentile(50), _connectionWait.percentile(99), _connectionWait.max()));
+      return sb.toString();
+   }//end toText
+
+   /**
+    * @return the same snapshot as toText() as a JSON object
+    */
+   public String toJson() {
+      StringBuilder sb = new StringBuilder("{\"operations\":{");
+      boolean first = true;
+      for (Map.Entry<String, OperationStats> e : sorted().entrySet()) {
+         OperationStats s = e.getValue();
+         if (!first)
+            sb.append(',');
+         first = false;
+         sb.append('"').append(e.getKey().replace("\"", "\\\"")).append("\":{")
+           .append("\"calls\":").append(s.calls())
+           .append(",\"errors\":").append(s.errors())
+           .append(",\"rows\":").append(s.rows())
+           .append(",\"totalMicros\":").append(s.totalMicros.sum())
+           .append(",\"p50\":").append(s.latency.percentile(50))
+           .append(",\"p90\":").append(s.latency.percentile(90))
+           .append(",\"p99\":").append(s.latency.percentile(99))
+           .append(",\"max\":").append(s.latency.max())
+           .append('}');
+      }
+      sb.append("},\"connectionWait\":{")
+        .append("\"count\":").append(_connections.sum())
+        .append(",\"p50\":").append(_connectionWait.percentile(50))
+        .append(",\"p99\":").append(_connectionWait.percentile(99))
+        .append(",\"max\":").append(_connectionWait.max())
+        .append("}}");
+      return sb.toString();
+   }//end toJson
+
+   /**
+    * Prints a text snapshot to the given stream every period on a daemon
+    * thread. Calling it again replaces the previous schedule.
+    *
+    * @param periodSeconds seconds between snapshots
+    * @param out where the snapshot is written
+    */
+   public synchronized void startPeriodicLogging(long periodSeconds, final PrintStream out) {
+      stopPeriodicLogging();
+      _reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "query-metrics");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      _reporter.scheduleAtFixedRate(new Runnable() {
+         public void run() {
+            out.print(toText());
+            out.flush();
+         }
+      }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+   }//end startPeriodicLogging
+
+   /**
+    * Stops the periodic logging started by startPeriodicLogging, if any.
+    */
+   public synchronized void stopPeriodicLogging() {
+      if (_reporter != null) {
+         _reporter.shutdownNow();
+         _reporter = null;
+      }
+   }//end stopPeriodicLogging
+
+   private Map<String, OperationStats> sorted() {
+      return new TreeMap<String, OperationStats>(_operations);
+   }//end sorted
+
+}//end QueryMetrics
@@ -0,0 +1,398 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Assigns repair requests to maintenance companies and days. Every company
+ * can do a fixed number of repairs per day; the companies wait in a
+ * priority queue ordered by their first day with spare capacity and their
+ * load on that day, so each request goes to the company that can start it
+ * soonest, in O(log companies). A repair is never put on a day its room is
+ * booked or already under repair; when the soonest company has no other
+ * day within the horizon, the next company in the queue is tried.
+ *
+ * Requests are grouped by hotel and each hotel is scheduled and inserted
+ * in one transaction. The rooms are locked with transaction-level advisory
+ * locks on (hotelID, roomNumber) that the RoomBookings trigger of
+ * sql/src/triggers.sql also takes, in shared mode, so a booking cannot
+ * slip into a day between reading the room's bookings and inserting its
+ * repair. The inserted repairs then block their days from being booked.
+ *
+ * The loads are read once when the scheduler is created and updated as
+ * repairs are placed, so one scheduler can take any number of batches.
+ * Other schedulers, e.g. in another manager's session, place repairs too,
+ * so before inserting, the chosen companies are locked with session-level
+ * advisory locks on the first shard, keyed by companyID alone, and their
+ * loads on the chosen days are counted again on every shard. If another
+ * scheduler has filled one of those days, the loads are corrected and the
+ * hotel is placed again. The company locks are held until the hotel's
+ * transaction has committed. Not thread-safe.
+ *
+ * Configuration (system properties):
+ *    hotel.repair.dailyCapacity  repairs one company does per day (default 4)
+ *    hotel.repair.horizonDays    latest day a repair is placed on, from the first day (default 365)
+ *
+ */
+public class RepairScheduler {
+
+   /**
+    * One room to be repaired.
+    */
+   public static class Request {
+      public final int hotelID;
+      public final int roomNumber;
+
+      public Request(int hotelID, int roomNumber) {
+         this.hotelID = hotelID;
+         this.roomNumber = roomNumber;
+      }
+   }//end Request
+
+   /**
+    * The outcome of one schedule call.
+    */
+   public static class Result {
+      // rows of repairID, companyID, hotelID, roomNumber, repairDate
+      public final List<List<String>> scheduled;
+      // unknown rooms, and rooms without a free day within the horizon
+      public final List<Request> unscheduled;
+      // requests of hotels whose transaction failed
+      public final List<Request> failed;
+      // the first of those failures, or null
+      public final SQLException error;
+
+      Result(List<List<String>> scheduled, List<Request> unscheduled, List<Request> failed, SQLException error) {
+         this.scheduled = scheduled;
+         this.unscheduled = unscheduled;
+         this.failed = failed;
+         this.error = error;
+      }
+   }//end Result
+
+   // one company and its repairs per day, as days since the epoch.
+   private static class Company {
+      final int companyID;
+      final Map<Long, Integer> load = new HashMap<Long, Integer>();
+      long nextFree;
+
+      Company(int companyID, long firstDay) {
+         this.companyID = companyID;
+         this.nextFree = firstDay;
+      }
+
+      int loadOn(long day) {
+         Integer n = load.get(Long.valueOf(day));
+         return n == null ? 0 : n.intValue();
+      }
+
+      void add(long day, int delta, int capacity) {
+         load.put(Long.valueOf(day), Integer.valueOf(loadOn(day) + delta));
+         if (delta < 0 && day < nextFree)
+            nextFree = day;
+         while (loadOn(nextFree) >= capacity)
+            nextFree++;
+      }
+   }//end Company
+
+   private final Hotel _esql;
+   private final int _capacity;
+   private final long _firstDay;
+   private final long _lastDay;
+   private final List<Company> _companies = new ArrayList<Company>();
+   private PriorityQueue<Company> _queue;
+
+   // companies locked on the first shard by the current hotel, in lock order.
+   private final Set<Integer> _locked = new TreeSet<Integer>();
+
+   private static final String LOAD_QUERY =
+      "SELECT companyID, repairDate - DATE '1970-01-01', COUNT(*) FROM RoomRepairs "
+      + "WHERE repairDate >= CAST(? AS date) GROUP BY companyID, repairDate";
+
+   /**
+    * Reads the companies and the repairs already placed from the first day on.
+    *
+    * @param esql the connections the repairs are written through
+    * @param firstDay the earliest day a repair is placed on
+    * @param capacity repairs one company does per day
+    * @param horizonDays the latest day a repair is placed on, counted from firstDay
+    * @throws java.sql.SQLException when the loads could not be read
+    */
+   public RepairScheduler(Hotel esql, LocalDate firstDay, int capacity, int horizonDays) throws SQLException {
+      // a company's repairs can be spread over every shard
+      this(esql, firstDay, capacity, horizonDays,
+         esql.executeQueryAndReturnResult("SELECT companyID FROM MaintenanceCompany"),
+         esql.executeQueryOnAllShards(LOAD_QUERY, null, 0, firstDay.toString()));
+   }//end RepairScheduler
+
+   // companies are rows of companyID, loads rows of companyID, days since
+   // the epoch and the number of repairs on that day.
+   RepairScheduler(Hotel esql, LocalDate firstDay, int capacity, int horizonDays,
+                   List<List<String>> companies, List<List<String>> loads) {
+      this._esql = esql;
+      this._capacity = capacity;
+      this._firstDay = firstDay.toEpochDay();
+      this._lastDay = _firstDay + horizonDays;
+      Map<Integer, Company> byID = new TreeMap<Integer, Company>();
+      for (List<String> row : companies)
+         byID.put(Integer.valueOf(row.get(0)), new Company(Integer.parseInt(row.get(0)), _firstDay));
+      for (List<String> row : loads) {
+         Company company = byID.get(Integer.valueOf(row.get(0)));
+         if (company != null)
+            company.add(Long.parseLong(row.get(1)), Integer.parseInt(row.get(2)), _capacity);
+      }
+      _companies.addAll(byID.values());
+      rebuildQueue();
+   }//end RepairScheduler
+
+   /**
+    * Builds a scheduler from the hotel.repair.* system properties.
+    *
+    * @param esql the connections the repairs are written through
+    * @param firstDay the earliest day a repair is placed on
+    * @return the scheduler
+    * @throws java.sql.SQLException when the loads could not be read
+    */
+   public static RepairScheduler fromSystemProperties(Hotel esql, LocalDate firstDay) throws SQLException {
+      return new RepairScheduler(esql, firstDay,
+         Integer.getInteger("hotel.repair.dailyCapacity", 4),
+         Integer.getInteger("hotel.repair.horizonDays", 365));
+   }//end fromSystemProperties
+
+   /**
+    * Places a repair for every request and inserts them, one transaction
+    * per hotel. A hotel whose transaction fails has none of its repairs
+    * inserted; the other hotels are still scheduled.
+    *
+    * @param requests the rooms to repair, in any order
+    * @return the inserted repairs, the requests that could not be placed
+    *         and those of failed hotels
+    */
+   public Result schedule(List<Request> requests) {
+      Map<Integer, List<Request>> byHotel = new TreeMap<Integer, List<Request>>();
+      for (Request request : requests)
+         byHotel.computeIfAbsent(request.hotelID, k -> new ArrayList<Request>()).add(request);
+      List<List<String>> scheduled = new ArrayList<List<String>>();
+      List<Request> unscheduled = new ArrayList<Request>();
+      List<Request> failed = new ArrayList<Request>();
+      SQLException error = null;
+      for (Map.Entry<Integer, List<Request>> hotel : byHotel.entrySet()) {
+         try{
+            scheduleHotel(hotel.getKey().intValue(), hotel.getValue(), scheduled, unscheduled);
+         }catch (SQLException e){
+            failed.addAll(hotel.getValue());
+            if (error == null)
+               error = e;
+         }
+      }
+      return new Result(scheduled, unscheduled, failed, error);
+   }//end schedule
+
+   private void scheduleHotel(final int hotelID, final List<Request> requests,
+                              List<List<String>> scheduled, List<Request> unscheduled) throws SQLException {
+      _esql.useShardOf(String.valueOf(hotelID));
+      // (company, day) pairs placed by the current attempt, undone if it rolls back
+      final List<long[]> placed = new ArrayList<long[]>();
+      final List<Request> skipped = new ArrayList<Request>();
+      try{
+         List<List<String>> inserted = _esql.inTransaction(Hotel.Isolation.READ_COMMITTED, tx -> {
+            undo(placed);
+            unlockCompanies();
+            skipped.clear();
+            return place(tx, hotelID, requests, placed, skipped);
+         });
+         scheduled.addAll(inserted);
+         unscheduled.addAll(skipped);
+      }catch (SQLException e){
+         undo(placed);
+         throw e;
+      }finally{
+         unlockCompanies();
+      }
+   }//end scheduleHotel
+
+   private List<List<String>> place(Hotel tx, int hotelID, List<Request> requests, List<long[]> placed, List<Request> skipped) throws SQLException {
+      TreeSet<Integer> asked = new TreeSet<Integer>();
+      for (Request request : requests)
+         asked.add(Integer.valueOf(request.roomNumber));
+      Integer[] rooms = asked.toArray(new Integer[0]);
+
+      // lock the hotel's existing rooms among those asked, in room order
+      Set<Integer> known = new HashSet<Integer>();
+      String lockQuery = "SELECT r.roomNumber, pg_advisory_xact_lock(r.hotelID, r.roomNumber) FROM Rooms r ";
+      lockQuery += "WHERE r.hotelID = ? AND r.roomNumber = ANY(CAST(? AS integer[])) ORDER BY r.roomNumber";
+      for (List<String> row : tx.executeQueryAndReturnResult(lockQuery, Integer.valueOf(hotelID), rooms))
+         known.add(Integer.valueOf(row.get(0)));
+
+      // days the rooms are booked or under repair, read after the locks
+      Map<Integer, Set<Long>> busy = new HashMap<Integer, Set<Long>>();
+      String busyQuery = "SELECT roomNumber, bookingDate - DATE '1970-01-01' FROM RoomBookings ";
+      busyQuery += "WHERE hotelID = ? AND roomNumber = ANY(CAST(? AS integer[])) AND bookingDate BETWEEN CAST(? AS date) AND CAST(? AS date) ";
+      busyQuery += "UNION ALL SELECT roomNumber, repairDate - DATE '1970-01-01' FROM RoomRepairs ";
+      busyQuery += "WHERE hotelID = ? AND roomNumber = ANY(CAST(? AS integer[])) AND repairDate BETWEEN CAST(? AS date) AND CAST(? AS date)";
+      String first = LocalDate.ofEpochDay(_firstDay).toString();
+      String last = LocalDate.ofEpochDay(_lastDay).toString();
+      for (List<String> row : tx.executeQueryAndReturnResult(busyQuery,
+            Integer.valueOf(hotelID), rooms, first, last, Integer.valueOf(hotelID), rooms, first, last))
+         busy.computeIfAbsent(Integer.valueOf(row.get(0)), k -> new HashSet<Long>()).add(Long.valueOf(row.get(1)));
+
+      List<Integer> companyIDs = new ArrayList<Integer>();
+      List<Integer> roomNumbers = new ArrayList<Integer>();
+      List<String> dates = new ArrayList<String>();
+      for (Request request : requests) {
+         Integer room = Integer.valueOf(request.roomNumber);
+         long[] assigned = known.contains(room) ? assign(busy.computeIfAbsent(room, k -> new HashSet<Long>())) : null;
+         if (assigned == null) {
+            skipped.add(request);
+            continue;
+         }
+         placed.add(assigned);
+         companyIDs.add(Integer.valueOf((int) assigned[0]));
+         roomNumbers.add(room);
+         dates.add(LocalDate.ofEpochDay(assigned[1]).toString());
+      }
+      if (companyIDs.isEmpty())
+         return new ArrayList<List<String>>();
+      recheckLoads(tx, placed);
+
+      // the repairRequest trigger adds the RoomRepairRequests rows
+      String insert = "INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate) ";
+      insert += "SELECT n.companyID, ?, n.roomNumber, n.repairDate FROM unnest(CAST(? AS integer[]), CAST(? AS integer[]), CAST(? AS date[])) AS n(companyID, roomNumber, repairDate) ";
+      insert += "RETURNING repairID, companyID, hotelID, roomNumber, repairDate";
+      return tx.executeQueryAndReturnResult(insert, Integer.valueOf(hotelID),
+         companyIDs.toArray(new Integer[0]), roomNumbers.toArray(new Integer[0]), dates.toArray(new String[0]));
+   }//end place
+
+   // gives the repair of a room busy on the given days to the company that
+   // can start it soonest and marks that day busy. A company without such a
+   // day within the horizon is passed over for the next one in the queue.
+   // Returns the companyID and the day, or null when no company has one.
+   long[] assign(Set<Long> roomBusy) {
+      List<Company> tried = new ArrayList<Company>();
+      try{
+         Company company;
+         while ((company = _queue.poll()) != null) {
+            tried.add(company);
+            long day = company.nextFree;
+            while (day <= _lastDay && (roomBusy.contains(Long.valueOf(day)) || company.loadOn(day) >= _capacity))
+               day++;
+            if (day > _lastDay)
+               continue;
+            company.add(day, 1, _capacity);
+            roomBusy.add(Long.valueOf(day));
+            return new long[] { company.companyID, day };
+         }
+         return null;
+      }finally{
+         _queue.addAll(tried);
+      }
+   }//end assign
+
+   // locks the chosen companies and counts their repairs on the chosen days
+   // again; if another scheduler got there first, corrects the loads and
+   // throws a serialization failure so inTransaction places the hotel again.
+   private void recheckLoads(Hotel tx, List<long[]> placed) throws SQLException {
+      Map<String, Integer> ours = new HashMap<String, Integer>();
+      Set<Integer> companyIDs = new TreeSet<Integer>();
+      Set<String> days = new TreeSet<String>();
+      for (long[] p : placed) {
+         ours.merge(p[0] + ":" + p[1], Integer.valueOf(1), Integer::sum);
+         companyIDs.add(Integer.valueOf((int) p[0]));
+         days.add(LocalDate.ofEpochDay(p[1]).toString());
+      }
+      lockCompanies(companyIDs);
+
+      String countQuery = "SELECT companyID, repairDate - DATE '1970-01-01', COUNT(*) FROM RoomRepairs ";
+      countQuery += "WHERE companyID = ANY(CAST(? AS integer[])) AND repairDate = ANY(CAST(? AS date[])) GROUP BY companyID, repairDate";
+      Map<String, Integer> stored = new HashMap<String, Integer>();
+      for (List<String> row : tx.executeQueryOnAllShards(countQuery, null, 0,
+            companyIDs.toArray(new Integer[0]), days.toArray(new String[0])))
+         stored.merge(row.get(0) + ":" + row.get(1), Integer.valueOf(row.get(2)), Integer::sum);
+
+      Map<Integer, Company> byID = new HashMap<Integer, Company>();
+      for (Company company : _companies)
+         byID.put(Integer.valueOf(company.companyID), company);
+      boolean full = false;
+      for (Map.Entry<String, Integer> pair : ours.entrySet()) {
+         String[] key = pair.getKey().split(":");
+         Company company = byID.get(Integer.valueOf(key[0]));
+         long day = Long.parseLong(key[1]);
+         int total = stored.getOrDefault(pair.getKey(), Integer.valueOf(0)).intValue() + pair.getValue().intValue();
+         company.add(day, total - company.loadOn(day), _capacity);
+         if (total > _capacity)
+            full = true;
+      }
+      rebuildQueue();
+      if (full)
+         throw new SQLException("A chosen company was filled by another scheduler", "40001");
+   }//end recheckLoads
+
+   // session-level locks, so they outlive the statements of the hotel's
+   // transaction whichever shard it runs on; taken in companyID order.
+   private void lockCompanies(Set<Integer> companyIDs) throws SQLException {
+      for (Integer companyID : companyIDs) {
+         if (_locked.contains(companyID))
+            continue;
+         advisory("SELECT pg_advisory_lock(CAST(? AS bigint))", companyID);
+         _locked.add(companyID);
+      }
+   }//end lockCompanies
+
+   private void unlockCompanies() {
+      for (Integer companyID : _locked) {
+         try{
+            advisory("SELECT pg_advisory_unlock(CAST(? AS bigint))", companyID);
+         }catch (SQLException e){
+            // the connection is gone, and its session locks with it
+         }
+      }
+      _locked.clear();
+   }//end unlockCompanies
+
+   private void advisory(String sql, Integer companyID) throws SQLException {
+      Connection catalog = _esql.shardRouter(0).primary();
+      PreparedStatement stmt = catalog.prepareStatement(sql);
+      try{
+         stmt.setInt(1, companyID.intValue());
+         stmt.execute();
+      }finally{
+         stmt.close();
+      }
+   }//end advisory
+
+   // takes back the loads of an attempt that rolled back.
+   private void undo(List<long[]> placed) {
+      if (placed.isEmpty())
+         return;
+      Map<Integer, Company> byID = new HashMap<Integer, Company>();
+      for (Company company : _companies)
+         byID.put(Integer.valueOf(company.companyID), company);
+      for (long[] p : placed)
+         byID.get(Integer.valueOf((int) p[0])).add(p[1], -1, _capacity);
+      placed.clear();
+      rebuildQueue();
+   }//end undo
+
+   private void rebuildQueue() {
+      _queue = new PriorityQueue<Company>(Math.max(1, _companies.size()), new Comparator<Company>() {
+         public int compare(Company a, Company b) {
+            if (a.nextFree != b.nextFree)
+               return Long.compare(a.nextFree, b.nextFree);
+            int byLoad = Integer.compare(a.loadOn(a.nextFree), b.loadOn(b.nextFree));
+            return byLoad != 0 ? byLoad : Integer.compare(a.companyID, b.companyID);
+         }
+      });
+      _queue.addAll(_companies);
+   }//end rebuildQueue
+
+}//end RepairScheduler
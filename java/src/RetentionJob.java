@@ -0,0 +1,196 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves old RoomUpdatesLog, RoomRepairs and RoomRepairRequests rows into
+ * the archive tables of sql/src/create_archive.sql, so the hot tables only
+ * hold recent rows. Each batch is one statement that deletes the rows with
+ * RETURNING and inserts them into the archive, so a row is always in
+ * exactly one of the two tables. A repair and its repair requests are
+ * moved by the same statement.
+ *
+ * Batches are throttled by a pause between them, which keeps the job from
+ * competing with the clients for I/O and locks. Each shard is processed in
+ * turn, and a table that lost rows is vacuumed afterwards so its space is
+ * reused and its BRIN ranges are summarized.
+ *
+ * Usage: java RetentionJob <dbname> <port> <user>
+ * with the same -Dhotel.shards as the clients.
+ *
+ * Configuration (system properties):
+ *    hotel.retention.updatesDays  keep this many days of RoomUpdatesLog, 0 keeps all (default 90)
+ *    hotel.retention.repairsDays  keep repairs dated within this many days, 0 keeps all (default 365)
+ *    hotel.retention.batchSize    rows moved per statement (default 1000)
+ *    hotel.retention.pauseMillis  pause between statements (default 200)
+ *    hotel.retention.interval     run again every N seconds, 0 runs once (default 0)
+ *
+ */
+public class RetentionJob {
+
+   private static final String ARCHIVE_UPDATES =
+      "WITH batch AS (SELECT updateNumber FROM RoomUpdatesLog WHERE updatedOn < ? LIMIT ? FOR UPDATE SKIP LOCKED), "
+      + "moved AS (DELETE FROM RoomUpdatesLog l USING batch WHERE l.updateNumber = batch.updateNumber RETURNING l.*) "
+      + "INSERT INTO RoomUpdatesLogArchive SELECT * FROM moved";
+
+   // the requests are deleted before the repairs they reference; both
+   // foreign key checks run at the end of the statement. Repairs are not
+   // inserted in date order, so they are moved oldest first to keep the
+   // archive's BRIN ranges narrow.
+   private static final String ARCHIVE_REPAIRS =
+      "WITH batch AS (SELECT repairID FROM RoomRepairs WHERE repairDate < ? ORDER BY repairDate LIMIT ? FOR UPDATE SKIP LOCKED), "
+      + "requests AS (DELETE FROM RoomRepairRequests q USING batch WHERE q.repairID = batch.repairID RETURNING q.*), "
+      + "archivedRequests AS (INSERT INTO RoomRepairRequestsArchive SELECT * FROM requests), "
+      + "repairs AS (DELETE FROM RoomRepairs r USING batch WHERE r.repairID = batch.repairID RETURNING r.*) "
+      + "INSERT INTO RoomRepairsArchive SELECT * FROM repairs ORDER BY repairDate";
+
+   private final Hotel _esql;
+   private final int _updatesDays;
+   private final int _repairsDays;
+   private final int _batchSize;
+   private final long _pauseMillis;
+   private ScheduledExecutorService _scheduler = null;
+
+   /**
+    * @param esql a Hotel with connections used only by this job
+    * @param updatesDays days of RoomUpdatesLog kept, 0 keeps all
+    * @param repairsDays days of RoomRepairs kept, 0 keeps all
+    * @param batchSize rows moved per statement
+    * @param pauseMillis pause between statements
+    */
+   public RetentionJob(Hotel esql, int updatesDays, int repairsDays, int batchSize, long pauseMillis) {
+      this._esql = esql;
+      this._updatesDays = updatesDays;
+      this._repairsDays = repairsDays;
+      this._batchSize = batchSize;
+      this._pauseMillis = pauseMillis;
+   }//end RetentionJob
+
+   /**
+    * Builds the job from the hotel.retention.* system properties.
+    *
+    * @param esql a Hotel with connections used only by this job
+    * @return the configured job
+    */
+   public static RetentionJob fromSystemProperties(Hotel esql) {
+      return new RetentionJob(esql,
+         Integer.getInteger("hotel.retention.updatesDays", 90),
+         Integer.getInteger("hotel.retention.repairsDays", 365),
+         Integer.getInteger("hotel.retention.batchSize", 1000),
+         Long.getLong("hotel.retention.pauseMillis", 200L));
+   }//end fromSystemProperties
+
+   public static void main(String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            RetentionJob.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+
+      Hotel esql = null;
+      try{
+         esql = new Hotel (args[0], args[1], args[2], "");
+         RetentionJob job = fromSystemProperties(esql);
+         int interval = Integer.getInteger("hotel.retention.interval", 0);
+         if (interval <= 0) {
+            job.runOnce();
+            return;
+         }
+         job.start(interval);
+         job._scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Runs the job every periodSeconds on a background thread until stop is
+    * called. A failed run is reported and retried at the next period.
+    *
+    * @param periodSeconds the time between the start of two runs
+    */
+   public synchronized void start(long periodSeconds) {
+      stop();
+      _scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "retention-job");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      _scheduler.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            try{
+               runOnce();
+            }catch (SQLException e){
+               System.err.println("Retention run failed: " + e.getMessage());
+            }catch (InterruptedException e){
+               Thread.currentThread().interrupt();
+            }
+         }
+      }, 0, periodSeconds, TimeUnit.SECONDS);
+   }//end start
+
+   /**
+    * Stops the background runs started by start, if any.
+    */
+   public synchronized void stop() {
+      if (_scheduler != null) {
+         _scheduler.shutdownNow();
+         _scheduler = null;
+      }
+   }//end stop
+
+   /**
+    * Archives every row past its retention on every shard.
+    *
+    * @return the number of rows archived
+    * @throws java.sql.SQLException when a batch failed; earlier batches stay archived
+    * @throws InterruptedException when interrupted while pausing
+    */
+   public long runOnce() throws SQLException, InterruptedException {
+      long total = 0;
+      for (int shard = 0; shard < _esql.shardCount(); shard++) {
+         if (_updatesDays > 0) {
+            Timestamp cutoff = Timestamp.valueOf(LocalDateTime.now().minusDays(_updatesDays));
+            total += archive(shard, "RoomUpdatesLog", ARCHIVE_UPDATES, cutoff);
+         }
+         if (_repairsDays > 0) {
+            java.sql.Date cutoff = java.sql.Date.valueOf(LocalDate.now().minusDays(_repairsDays));
+            total += archive(shard, "RoomRepairs", ARCHIVE_REPAIRS, cutoff);
+         }
+      }
+      return total;
+   }//end runOnce
+
+   // moves batches until one comes back short, then vacuums the table.
+   private long archive(int shard, String table, String sql, Object cutoff) throws SQLException, InterruptedException {
+      _esql.setOperation("retention");
+      _esql.useShard(shard);
+      long moved = 0;
+      int rows;
+      do {
+         rows = _esql.executeUpdate(sql, cutoff, Integer.valueOf(_batchSize));
+         moved += rows;
+         if (rows == _batchSize && _pauseMillis > 0)
+            Thread.sleep(_pauseMillis);
+      } while (rows == _batchSize);
+      if (moved > 0) {
+         _esql.executeUpdate("VACUUM (ANALYZE) " + table);
+         System.out.println("\tshard " + shard + ", " + table + ": " + moved + " rows archived");
+      }
+      return moved;
+   }//end archive
+
+}//end RetentionJob
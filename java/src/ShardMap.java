@@ -0,0 +1,171 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps a hotelID to the shard that holds its Rooms, RoomBookings,
+ * RoomRepairs, RoomRepairRequests and RoomUpdatesLog rows. Hotels are
+ * placed by hotelID range when ranges are configured and by hotelID modulo
+ * the shard count otherwise. Hotels moved by ShardRebalancer are recorded
+ * in the HotelShards table on the first shard and override both.
+ *
+ * Every HotelShards row carries a version from a sequence, so a client
+ * notices a move by comparing the highest version with the one it loaded.
+ * Hotel checks at most once per refresh interval, and before the next
+ * routing after a failed statement, since a write sent to the old shard of
+ * a moved hotel fails there.
+ *
+ * Configuration (system properties):
+ *    hotel.shardRanges             start:shard pairs, e.g. 1:0,500:1 puts hotels
+ *                                  1-499 on shard 0 and 500 and up on shard 1
+ *    hotel.shardMap.refreshMillis  least time between checks of HotelShards (default 1000)
+ *
+ */
+public class ShardMap {
+
+   private final int _shardCount;
+   private final TreeMap<Integer, Integer> _ranges;
+   private final Map<Integer, Integer> _placements = new ConcurrentHashMap<Integer, Integer>();
+   private final long _refreshNanos;
+
+   // highest HotelShards version loaded, and when it was last compared.
+   private volatile long _version = 0;
+   private volatile long _checkedAt = 0;
+   private volatile boolean _stale = true;
+
+   /**
+    * @param shardCount the number of shards
+    * @param ranges first hotelID of each range mapped to its shard, may be empty
+    */
+   public ShardMap(int shardCount, TreeMap<Integer, Integer> ranges) {
+      this(shardCount, ranges, 1000);
+   }//end ShardMap
+
+   /**
+    * @param shardCount the number of shards
+    * @param ranges first hotelID of each range mapped to its shard, may be empty
+    * @param refreshMillis least time between checks of HotelShards
+    */
+   public ShardMap(int shardCount, TreeMap<Integer, Integer> ranges, long refreshMillis) {
+      this._shardCount = shardCount;
+      this._ranges = ranges;
+      this._refreshNanos = refreshMillis * 1000000L;
+   }//end ShardMap
+
+   /**
+    * Builds the map from the hotel.shardRanges system property.
+    *
+    * @param shardCount the number of shards
+    * @return the configured map
+    */
+   public static ShardMap fromSystemProperties(int shardCount) {
+      TreeMap<Integer, Integer> ranges = new TreeMap<Integer, Integer>();
+      String spec = System.getProperty("hotel.shardRanges", "").trim();
+      if (!spec.isEmpty()) {
+         for (String range : spec.split(",")) {
+            String[] parts = range.trim().split(":");
+            int shard = Integer.parseInt(parts[1].trim());
+            if (shard < 0 || shard >= shardCount)
+               throw new IllegalArgumentException("hotel.shardRanges refers to unknown shard " + shard);
+            ranges.put(Integer.valueOf(parts[0].trim()), Integer.valueOf(shard));
+         }
+      }
+      return new ShardMap(shardCount, ranges, Long.getLong("hotel.shardMap.refreshMillis", 1000L));
+   }//end fromSystemProperties
+
+   /**
+    * @param hotelID a hotel
+    * @return the index of the shard holding that hotel
+    */
+   public int shardOf(int hotelID) {
+      Integer placed = _placements.get(Integer.valueOf(hotelID));
+      if (placed != null)
+         return placed.intValue();
+      if (!_ranges.isEmpty()) {
+         Map.Entry<Integer, Integer> range = _ranges.floorEntry(Integer.valueOf(hotelID));
+         return range == null ? _ranges.firstEntry().getValue().intValue() : range.getValue().intValue();
+      }
+      return Math.floorMod(hotelID, _shardCount);
+   }//end shardOf
+
+   /**
+    * Records that a hotel now lives on the given shard.
+    *
+    * @param hotelID a hotel
+    * @param shard the index of its new shard
+    */
+   public void place(int hotelID, int shard) {
+      _placements.put(Integer.valueOf(hotelID), Integer.valueOf(shard));
+   }//end place
+
+   /**
+    * Loads the placements of moved hotels from the HotelShards table.
+    *
+    * @param catalog a connection to the first shard
+    * @throws java.sql.SQLException when the table could not be read
+    */
+   public synchronized void loadPlacements(Connection catalog) throws SQLException {
+      Statement stmt = catalog.createStatement();
+      try{
+         long version = 0;
+         ResultSet rs = stmt.executeQuery("SELECT hotelID, shard, version FROM HotelShards");
+         while (rs.next()) {
+            place(rs.getInt(1), rs.getInt(2));
+            version = Math.max(version, rs.getLong(3));
+         }
+         _version = version;
+         _checkedAt = System.nanoTime();
+         _stale = false;
+      }finally{
+         stmt.close();
+      }
+   }//end loadPlacements
+
+   /**
+    * Reloads the placements if a hotel was moved since they were loaded.
+    * Does nothing until the refresh interval has passed, unless the map
+    * was marked stale.
+    *
+    * @param catalog a connection to the first shard
+    * @throws java.sql.SQLException when the table could not be read
+    */
+   public synchronized void refresh(Connection catalog) throws SQLException {
+      if (!isDue(System.nanoTime()))
+         return;
+      long version = 0;
+      Statement stmt = catalog.createStatement();
+      try{
+         ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM HotelShards");
+         if (rs.next())
+            version = rs.getLong(1);
+      }finally{
+         stmt.close();
+      }
+      if (version != _version) {
+         loadPlacements(catalog);
+      }else {
+         _checkedAt = System.nanoTime();
+         _stale = false;
+      }
+   }//end refresh
+
+   /**
+    * Makes the next refresh check HotelShards whatever the interval.
+    */
+   public void invalidate() {
+      _stale = true;
+   }//end invalidate
+
+   /**
+    * @param now the current System.nanoTime()
+    * @return true if the next refresh reads HotelShards
+    */
+   boolean isDue(long now) {
+      return _stale || now - _checkedAt >= _refreshNanos;
+   }//end isDue
+
+}//end ShardMap
@@ -0,0 +1,232 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Moves one hotel, with its rooms, bookings, repairs, repair requests and
+ * update log, from its current shard to another and records the new
+ * placement in HotelShards on the first shard.
+ *
+ * The hotel's Rooms rows stay locked FOR UPDATE on the source for the whole
+ * move, which blocks room updates and new bookings for that hotel until
+ * the source rows are deleted. Rows are copied with their original IDs;
+ * sql/src/create_shards.sql keeps the sequences of every shard disjoint.
+ * The copy sets session_replication_role = replica on the target so its
+ * insert triggers do not fire again, which needs a superuser connection.
+ *
+ * Running clients pick up the new placement within
+ * hotel.shardMap.refreshMillis, or at once after one of their statements
+ * failed (see ShardMap). Until then they still route the hotel to the
+ * source: their writes wait for the lock above and then fail on the
+ * deleted rooms, and their reads find nothing. Between the target's
+ * commit and the delete on the source, both shards hold the hotel, so
+ * reports gathered from every shard count its rows twice.
+ *
+ * Usage: java ShardRebalancer <dbname> <port> <user> <hotelID> <targetShard>
+ * with the same -Dhotel.shards and -Dhotel.shardRanges as the clients.
+ *
+ */
+public class ShardRebalancer {
+
+   // parent tables first; the WHERE clause selects the hotel's rows.
+   private static final String[][] TABLES = {
+      { "Rooms", "hotelID = ?" },
+      { "RoomBookings", "hotelID = ?" },
+      { "RoomRepairs", "hotelID = ?" },
+      { "RoomRepairRequests", "repairID IN (SELECT repairID FROM RoomRepairs WHERE hotelID = ?)" },
+      { "RoomUpdatesLog", "hotelID = ?" },
+   };
+
+   private static final int BATCH_SIZE = 1000;
+
+   public static void main(String[] args) {
+      if (args.length != 5) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            ShardRebalancer.class.getName () +
+            " <dbname> <port> <user> <hotelID> <targetShard>");
+         return;
+      }//end if
+
+      Hotel esql = null;
+      Connection catalog = null;
+      try{
+         esql = new Hotel (args[0], args[1], args[2], "");
+         esql.setOperation("rebalance");
+         int hotelID = Integer.parseInt(args[3]);
+         int target = Integer.parseInt(args[4]);
+         if (target < 0 || target >= esql.shardCount()) {
+            System.err.println("Unknown shard " + target + ", there are " + esql.shardCount() + " shards");
+            return;
+         }
+         int source = esql.shardMap().shardOf(hotelID);
+         if (source == target) {
+            System.out.println("Hotel " + hotelID + " is already on shard " + target);
+            return;
+         }
+         // the placement commits on its own, even when the first shard is the source or target
+         catalog = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0],
+            Hotel.connectionProperties(args[2], ""));
+         move(esql, catalog, hotelID, source, target);
+         System.out.println("Moved hotel " + hotelID + " from shard " + source + " to shard " + target);
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         try{
+            if (catalog != null)
+               catalog.close();
+         }catch (SQLException e){
+            // nothing left to release
+         }
+         if (esql != null)
+            esql.cleanup();
+      }
+   }//end main
+
+   /**
+    * Copies the hotel to the target, records the placement, then deletes it
+    * from the source. Any rows of the hotel already on the target, left by
+    * an earlier failed move, are replaced by the copy, so a failed move can
+    * simply be run again. If a step fails, the earlier steps are undone:
+    * the copy is deleted from the target and the placement is set back to
+    * the source. If undoing a step fails too, the exception lists it as
+    * suppressed: when the copy could not be deleted, the placement still
+    * names the source and rerunning the move replaces the target's rows;
+    * when the placement could not be set back, the hotel is served from the
+    * target and its leftover source rows have to be deleted by hand.
+    *
+    * @param esql a Hotel connected to every shard
+    * @param catalog an autocommit connection to the first shard, not used by esql
+    * @param hotelID the hotel to move
+    * @param source the shard currently holding it
+    * @param target the shard to move it to
+    * @throws java.sql.SQLException when the move failed
+    */
+   public static void move(Hotel esql, Connection catalog, int hotelID, int source, int target) throws SQLException {
+      Connection from = esql.shardRouter(source).primary();
+      Connection to = esql.shardRouter(target).primary();
+      from.setAutoCommit(false);
+      to.setAutoCommit(false);
+      boolean copied = false;
+      boolean placed = false;
+      try{
+         update(from, "SELECT roomNumber FROM Rooms WHERE hotelID = ? FOR UPDATE", hotelID);
+
+         // copied rows already carry their managerIDs and repair requests,
+         // so the insert triggers must not fire again on the target.
+         update(to, "SET LOCAL session_replication_role = replica");
+         clear(to, hotelID);
+         for (String[] table : TABLES) {
+            int rows = copy(from, to, table[0], table[1], hotelID);
+            System.out.println("\t" + table[0] + ": " + rows + " rows");
+         }
+         to.commit();
+         copied = true;
+
+         place(catalog, hotelID, target);
+         placed = true;
+
+         clear(from, hotelID);
+         from.commit();
+         esql.shardMap().place(hotelID, target);
+      }catch (SQLException e){
+         rollback(to, e);
+         rollback(from, e);
+         if (placed) {
+            try{
+               place(catalog, hotelID, source);
+            }catch (SQLException undo){
+               e.addSuppressed(undo);
+               copied = false;
+            }
+         }
+         if (copied) {
+            try{
+               update(to, "SET LOCAL session_replication_role = replica");
+               clear(to, hotelID);
+               to.commit();
+            }catch (SQLException undo){
+               e.addSuppressed(undo);
+               rollback(to, e);
+            }
+         }
+         throw e;
+      }finally{
+         to.setAutoCommit(true);
+         from.setAutoCommit(true);
+      }
+   }//end move
+
+   // records the hotel's shard in HotelShards under a new version, so
+   // running clients reload; catalog is in autocommit.
+   private static void place(Connection catalog, int hotelID, int shard) throws SQLException {
+      update(catalog, "INSERT INTO HotelShards (hotelID, shard) VALUES (?, ?) "
+         + "ON CONFLICT (hotelID) DO UPDATE SET shard = EXCLUDED.shard, version = nextval('hotelshards_version_seq')",
+         hotelID, shard);
+   }//end place
+
+   // deletes the hotel's rows from one shard, children first.
+   private static void clear(Connection conn, int hotelID) throws SQLException {
+      for (int i = TABLES.length - 1; i >= 0; i--)
+         update(conn, "DELETE FROM " + TABLES[i][0] + " WHERE " + TABLES[i][1], hotelID);
+   }//end clear
+
+   private static void rollback(Connection conn, SQLException cause) {
+      try{
+         conn.rollback();
+      }catch (SQLException e){
+         cause.addSuppressed(e);
+      }
+   }//end rollback
+
+   // streams the selected rows of one table into the same table on the target.
+   private static int copy(Connection from, Connection to, String table, String where, int hotelID) throws SQLException {
+      PreparedStatement select = from.prepareStatement("SELECT * FROM " + table + " WHERE " + where);
+      PreparedStatement insert = null;
+      int rows = 0;
+      try{
+         select.setFetchSize(BATCH_SIZE);
+         select.setInt(1, hotelID);
+         ResultSet rs = select.executeQuery();
+         ResultSetMetaData rsmd = rs.getMetaData();
+         int numCol = rsmd.getColumnCount();
+         StringBuilder columns = new StringBuilder();
+         StringBuilder values = new StringBuilder();
+         for (int i = 1; i <= numCol; i++) {
+            columns.append(i == 1 ? "" : ", ").append(rsmd.getColumnName(i));
+            values.append(i == 1 ? "?" : ", ?");
+         }
+         insert = to.prepareStatement("INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ")");
+         while (rs.next()) {
+            for (int i = 1; i <= numCol; i++)
+               insert.setObject(i, rs.getObject(i));
+            insert.addBatch();
+            if (++rows % BATCH_SIZE == 0)
+               insert.executeBatch();
+         }
+         if (rows % BATCH_SIZE != 0)
+            insert.executeBatch();
+      }finally{
+         select.close();
+         if (insert != null)
+            insert.close();
+      }
+      return rows;
+   }//end copy
+
+   private static void update(Connection conn, String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement(sql);
+      try{
+         for (int i = 0; i < params.length; i++)
+            stmt.setObject(i + 1, params[i]);
+         stmt.execute();
+      }finally{
+         stmt.close();
+      }
+   }//end update
+
+}//end ShardRebalancer
@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Logs statements that run longer than a configurable threshold, together
+ * with their bind parameters, duration and row count. Read statements can
+ * optionally be re-run under EXPLAIN (ANALYZE, BUFFERS) so the plan is
+ * captured next to the timing. Entries go to a size-rotated file set.
+ * Statements on the Users table bind passwords, so their parameters are
+ * written as [redacted] and they are never explained, since a plan shows
+ * the bound values.
+ *
+ * Configuration (system properties):
+ *    hotel.slowQuery.millis    threshold in ms, negative disables (default -1)
+ *    hotel.slowQuery.explain   re-run SELECTs under EXPLAIN (default false)
+ *    hotel.slowQuery.file      log file pattern (default slow-query.%g.log)
+ *    hotel.slowQuery.fileBytes bytes per file before rotating (default 10MB)
+ *    hotel.slowQuery.files     number of rotated files kept (default 5)
+ *
+ */
+public class SlowQueryLog {
+
+   // reads that change state when run again: row locks, sequences,
+   // advisory locks and snapshot exports.
+   private static final Pattern SIDE_EFFECTS = Pattern.compile(
+      "\\bFOR\\s+(UPDATE|SHARE|NO\\s+KEY\\s+UPDATE|KEY\\s+SHARE)\\b|\\b(nextval|setval|pg_advisory\\w*|pg_try_advisory\\w*|pg_export_snapshot)\\s*\\(",
+      Pattern.CASE_INSENSITIVE);
+
+   // statements that may bind a password
+   private static final Pattern SENSITIVE = Pattern.compile("\\bUsers\\b", Pattern.CASE_INSENSITIVE);
+
+   private final long _thresholdNanos;
+   private final boolean _explain;
+   private final Logger _logger;
+
+   /**
+    * @param thresholdMillis statements at or above this are logged, negative disables
+    * @param explain whether to capture EXPLAIN (ANALYZE, BUFFERS) for reads
+    * @param logger where entries are written
+    */
+   public SlowQueryLog(long thresholdMillis, boolean explain, Logger logger) {
+      this._thresholdNanos = thresholdMillis < 0 ? Long.MAX_VALUE : thresholdMillis * 1000000L;
+      this._explain = explain;
+      this._logger = logger;
+   }//end SlowQueryLog
+
+   /**
+    * Builds the log from the hotel.slowQuery.* system properties. The file
+    * handler is only opened when a threshold is configured.
+    *
+    * @return the configured log, disabled if no threshold is set
+    */
+   public static SlowQueryLog fromSystemProperties() {
+      long millis = Long.getLong("hotel.slowQuery.millis", -1L);
+      boolean explain = Boolean.getBoolean("hotel.slowQuery.explain");
+      Logger logger = Logger.getLogger("hotel.slowQuery");
+      logger.setUseParentHandlers(false);
+      if (millis >= 0) {
+         try{
+            FileHandler handler = new FileHandler(
+               System.getProperty("hotel.slowQuery.file", "slow-query.%g.log"),
+               Integer.getInteger("hotel.slowQuery.fileBytes", 10 * 1024 * 1024),
+               Integer.getInteger("hotel.slowQuery.files", 5),
+               true);
+            handler.setFormatter(new EntryFormatter());
+            logger.addHandler(handler);
+         }catch (IOException e){
+            System.err.println("Unable to open slow query log: " + e.getMessage());
+            millis = -1;
+         }
+      }
+      return new SlowQueryLog(millis, explain, logger);
+   }//end fromSystemProperties
+
+   /**
+    * @param nanos the elapsed time of a statement
+    * @return true if the statement should be logged
+    */
+   public boolean isSlow(long nanos) {
+      return nanos >= _thresholdNanos;
+   }//end isSlow
+
+   /**
+    * Writes one entry, capturing the plan first if enabled. Failures while
+    * explaining are noted in the entry and never propagate to the caller.
+    * EXPLAIN ANALYZE executes the statement, so only SELECTs without side
+    * effects are re-run, and only outside a transaction, where a failed or
+    * timed out EXPLAIN cannot abort the caller's work.
+    *
+    * @param conn the connection the statement ran on, used for EXPLAIN
+    * @param operation the logical operation that issued the statement
+    * @param sql the statement text
+    * @param params the bind parameters, may be empty
+    * @param nanos the elapsed time of the statement
+    * @param rows the number of rows returned or affected
+    */
+   public void log(Connection conn, String operation, String sql, Object[] params, long nanos, int rows) {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("operation=%s duration=%.3fms rows=%d%n", operation, nanos / 1e6, rows));
+      sb.append("  sql: ").append(sql.trim()).append(System.lineSeparator());
+      boolean sensitive = isSensitive(sql);
+      if (params != null && params.length > 0)
+         sb.append("  params: ").append(sensitive ? "[redacted]" : Arrays.toString(params)).append(System.lineSeparator());
+      if (_explain && !sensitive && isExplainable(sql)) {
+         sb.append("  plan:").append(System.lineSeparator());
+         try{
+            if (!conn.getAutoCommit()) {
+               sb.append("    (skipped inside a transaction)").append(System.lineSeparator());
+            }else {
+               PreparedStatement stmt = conn.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + sql);
+               try{
+                  for (int i = 0; params != null && i < params.length; i++)
+                     stmt.setObject(i + 1, params[i]);
+                  ResultSet rs = stmt.executeQuery();
+                  while (rs.next())
+                     sb.append("    ").append(rs.getString(1)).append(System.lineSeparator());
+               }finally{
+                  stmt.close();
+               }
+            }
+         }catch (SQLException e){
+            sb.append("    (explain failed: ").append(e.getMessage()).append(')').append(System.lineSeparator());
+         }
+      }
+      _logger.log(Level.WARNING, sb.toString());
+   }//end log
+
+   /**
+    * @param sql a statement
+    * @return true if it is a SELECT that can be run again without side effects
+    */
+   static boolean isExplainable(String sql) {
+      return Hotel.isSelect(sql) && !SIDE_EFFECTS.matcher(sql).find();
+   }//end isExplainable
+
+   /**
+    * @param sql a statement
+    * @return true if its parameters must not be written to the log
+    */
+   static boolean isSensitive(String sql) {
+      return SENSITIVE.matcher(sql).find();
+   }//end isSensitive
+
+   /**
+    * One timestamped block per entry.
+    */
+   private static class EntryFormatter extends Formatter {
+      private final SimpleDateFormat _format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+      public synchronized String format(LogRecord record) {
+         return _format.format(new Date(record.getMillis())) + " " + record.getMessage() + System.lineSeparator();
+      }
+   }//end EntryFormatter
+
+}//end SlowQueryLog
@@ -0,0 +1,135 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes the same bordered tables as the menus to a buffered stream, for
+ * output that is not read by a person as it is produced. Each table's
+ * border and header are built once; rows are padded into a reused buffer
+ * instead of going through String.format, and nothing reaches the stream
+ * until the buffer fills or flush is called.
+ *
+ * Not thread-safe.
+ *
+ */
+public class TableWriter implements AutoCloseable {
+
+   /**
+    * A table with fixed column widths. Values are right-aligned like the
+    * %Ns columns of the menus; longer values are written whole.
+    */
+   public class Table {
+      private final int[] _widths;
+      private final String _border;
+
+      Table(String title, String[] headers, int[] widths) throws IOException {
+         this._widths = widths;
+         StringBuilder border = new StringBuilder("-");
+         for (int width : widths)
+            for (int i = 0; i < width + 3; i++)
+               border.append('-');
+         this._border = border.append('\n').toString();
+         int inner = _border.length() - 3;
+         int left = Math.max(0, (inner - title.length()) / 2);
+         _line.setLength(0);
+         _line.append("\n\n").append(_border).append('|');
+         spaces(_line, left);
+         _line.append(title);
+         spaces(_line, inner - left - title.length());
+         _line.append("|\n").append(_border);
+         _out.write(_line.toString());
+         writeRow(headers);
+         _out.write(_border);
+      }
+
+      /**
+       * @param values one value per column
+       */
+      public void row(List<String> values) throws IOException {
+         writeRow(values.toArray(new String[values.size()]));
+      }
+
+      /**
+       * Closes the table with its bottom border.
+       */
+      public void end() throws IOException {
+         _out.write(_border);
+      }
+
+      private void writeRow(String[] values) throws IOException {
+         _line.setLength(0);
+         _line.append('|');
+         for (int i = 0; i < _widths.length; i++) {
+            String value = i < values.length && values[i] != null ? values[i] : "";
+            _line.append(' ');
+            spaces(_line, _widths[i] - value.length());
+            _line.append(value).append(" |");
+         }
+         _line.append('\n');
+         _out.write(_line.toString());
+      }
+   }//end Table
+
+   private final Writer _out;
+   private final StringBuilder _line = new StringBuilder(256);
+
+   /**
+    * @param out the stream written to; it is buffered here if it is not already
+    */
+   public TableWriter(Writer out) {
+      this._out = out instanceof BufferedWriter ? out : new BufferedWriter(out, 1 << 16);
+   }//end TableWriter
+
+   /**
+    * @return a writer to standard output that does not flush on every line
+    */
+   public static TableWriter toStandardOutput() {
+      return new TableWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8));
+   }//end toStandardOutput
+
+   /**
+    * Writes a table's title, borders and header.
+    *
+    * @param title the text centered above the header
+    * @param headers the column names
+    * @param widths the column widths, at least the header lengths
+    * @return the table to write rows to
+    * @throws java.io.IOException when writing failed
+    */
+   public Table table(String title, String[] headers, int[] widths) throws IOException {
+      return new Table(title, headers, widths);
+   }//end table
+
+   /**
+    * Writes one line of text.
+    *
+    * @param text the line without its line break
+    * @throws java.io.IOException when writing failed
+    */
+   public void line(String text) throws IOException {
+      _out.write(text);
+      _out.write('\n');
+   }//end line
+
+   public void flush() throws IOException {
+      _out.flush();
+   }//end flush
+
+   /**
+    * Flushes the buffer, leaving the underlying stream open.
+    */
+   public void close() throws IOException {
+      _out.flush();
+   }//end close
+
+   private static void spaces(StringBuilder sb, int count) {
+      for (int i = 0; i < count; i++)
+         sb.append(' ');
+   }//end spaces
+
+}//end TableWriter
@@ -0,0 +1,77 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Parsing of BatchRunner script lines into commands.
+ */
+public class BatchRunnerTest {
+
+   private static final ShardMap SHARDS = new ShardMap(2, new TreeMap<Integer, Integer>());
+
+   private static BatchRunner.Command parse(String text) {
+      return BatchRunner.parse(SHARDS, 3, text, text.split("\\s+"));
+   }
+
+   @Test
+   public void parsesBooking() {
+      BatchRunner.Command c = parse("book 7 13 101 03/15/2027");
+      Date night = Date.valueOf("2027-03-15");
+      assertEquals("book", c.kind);
+      assertEquals(1, c.shard);
+      assertEquals(3, c.line);
+      assertArrayEquals(new Object[] { night, 7, 13, 101, night }, c.params);
+   }
+
+   @Test
+   public void parsesReprice() {
+      BatchRunner.Command c = parse("reprice 2 12 101 250");
+      assertEquals("reprice", c.kind);
+      assertEquals(0, c.shard);
+      assertArrayEquals(new Object[] { 250, 2, 12, 101 }, c.params);
+   }
+
+   @Test
+   public void keepsSpacesInUserNames() {
+      BatchRunner.Command c = parse("user customer secret Ann  van Lee");
+      assertEquals("user", c.kind);
+      assertEquals(0, c.shard);
+      assertArrayEquals(new String[] { "Ann  van Lee", "secret", "customer" }, (String[]) c.params);
+   }
+
+   @Test
+   public void parsesRepairs() {
+      BatchRunner.Command dated = parse("repair 2 13 101 5 03/15/2027");
+      Date day = Date.valueOf("2027-03-15");
+      assertEquals("repair", dated.kind);
+      assertEquals(1, dated.shard);
+      assertArrayEquals(new Object[] { day, 5, 2, 13, 101, day }, dated.params);
+
+      BatchRunner.Command today = parse("repair 2 13 101 5");
+      assertEquals(Date.valueOf(LocalDate.now()), today.params[0]);
+      assertEquals(today.params[0], today.params[5]);
+
+      BatchRunner.Command auto = parse("repair 2 13 101 auto");
+      assertEquals("schedule", auto.kind);
+      assertEquals(0, auto.shard);
+      assertArrayEquals(new Object[] { 2, 13, 101 }, auto.params);
+   }
+
+   @Test
+   public void rejectsMalformedLines() {
+      assertThrows(IllegalArgumentException.class, () -> parse("cancel 1 2 3"));
+      assertThrows(IllegalArgumentException.class, () -> parse("book 7 13 101"));
+      assertThrows(IllegalArgumentException.class, () -> parse("book 7 x 101 03/15/2027"));
+      assertThrows(IllegalArgumentException.class, () -> parse("user admin secret Ann"));
+      assertThrows(IllegalArgumentException.class, () -> parse("user customer secret"));
+      assertThrows(DateTimeParseException.class, () -> parse("book 7 13 101 2027-03-15"));
+   }
+
+}//end BatchRunnerTest
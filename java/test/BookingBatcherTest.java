@@ -0,0 +1,17 @@
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Limits BookingBatcher checks before starting its writer.
+ */
+public class BookingBatcherTest {
+
+   @Test
+   public void rejectsBatchesBeyondTheBindParameterLimit() {
+      // 16384 bookings would bind 65536 parameters
+      assertThrows(IllegalArgumentException.class, () -> new BookingBatcher(null, 16384, 2, 100));
+      assertThrows(IllegalArgumentException.class, () -> new BookingBatcher(null, 0, 2, 100));
+   }
+
+}//end BookingBatcherTest
@@ -0,0 +1,105 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Round trip of the HBX1 format through BookingExport's encoder and
+ * BookingExportReader, without a database.
+ */
+public class BookingExportTest {
+
+   @TempDir
+   Path dir;
+
+   // a row group of n bookings from the given bookingID on, with repeated
+   // customers and hotels, non-ASCII names and dates going back and forth.
+   private static BookingExport.RowGroup rows(int firstBookingID, int n) {
+      BookingExport.RowGroup group = new BookingExport.RowGroup(n);
+      for (int i = 0; i < n; i++) {
+         group.bookingID[i] = firstBookingID + i * 3;
+         group.customerID[i] = 1000 + (i * 7) % 5;
+         group.customerName[i] = "customer " + group.customerID[i] + (group.customerID[i] % 2 == 0 ? "" : " Zoë");
+         group.hotelID[i] = 50 - i % 3;
+         group.hotelName[i] = "hotel " + group.hotelID[i];
+         group.roomNumber[i] = 1 + i % 40;
+         group.price[i] = i % 4 == 0 ? 0 : 100 + i * 13;
+         group.bookingDay[i] = 19000 + (i % 2 == 0 ? i : -i);
+      }
+      return group;
+   }
+
+   private File write(BookingExport.RowGroup... groups) throws IOException {
+      File file = dir.resolve("bookings.hbx").toFile();
+      try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+         BookingExport export = BookingExport.start(out, 1024, 100, 1);
+         for (BookingExport.RowGroup group : groups)
+            export.write(group, group.bookingID.length);
+         export.writeFooter();
+      }
+      return file;
+   }
+
+   private static void assertSameRows(BookingExport.RowGroup expected, BookingExport.RowGroup actual) {
+      assertEquals(expected.bookingID.length, actual.size);
+      assertArrayEquals(expected.bookingID, actual.bookingID);
+      assertArrayEquals(expected.customerID, actual.customerID);
+      assertArrayEquals(expected.customerName, actual.customerName);
+      assertArrayEquals(expected.hotelID, actual.hotelID);
+      assertArrayEquals(expected.hotelName, actual.hotelName);
+      assertArrayEquals(expected.roomNumber, actual.roomNumber);
+      assertArrayEquals(expected.price, actual.price);
+      assertArrayEquals(expected.bookingDay, actual.bookingDay);
+   }
+
+   @Test
+   public void readsBackEveryColumn() throws IOException {
+      BookingExport.RowGroup group = rows(1, 500);
+      try (BookingExportReader reader = new BookingExportReader(write(group).getPath())) {
+         assertEquals(1, reader.groupCount());
+         assertEquals(500, reader.rowCount());
+         assertArrayEquals(new int[] { 1, 1 + 499 * 3 }, reader.bookingIDRange(0));
+         assertSameRows(group, reader.read(0));
+      }
+   }
+
+   @Test
+   public void listsRowGroupsInBookingIDOrder() throws IOException {
+      // workers finish their ranges in any order
+      BookingExport.RowGroup late = rows(100000, 10);
+      BookingExport.RowGroup early = rows(5, 20);
+      try (BookingExportReader reader = new BookingExportReader(write(late, early).getPath())) {
+         assertEquals(2, reader.groupCount());
+         assertEquals(30, reader.rowCount());
+         assertSameRows(early, reader.read(0));
+         assertSameRows(late, reader.read(1));
+      }
+   }
+
+   @Test
+   public void writesMissingNamesAsEmpty() throws IOException {
+      BookingExport.RowGroup group = rows(1, 3);
+      Arrays.fill(group.hotelName, null);
+      try (BookingExportReader reader = new BookingExportReader(write(group).getPath())) {
+         assertArrayEquals(new String[] { "", "", "" }, reader.read(0).hotelName);
+      }
+   }
+
+   @Test
+   public void rejectsTruncatedFile() throws IOException {
+      File file = write(rows(1, 50));
+      try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+         out.setLength(out.length() - 1);
+      }
+      assertThrows(IOException.class, () -> new BookingExportReader(file.getPath()).close());
+   }
+
+}//end BookingExportTest
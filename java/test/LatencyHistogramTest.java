@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Bucketing and percentiles of LatencyHistogram.
+ */
+public class LatencyHistogramTest {
+
+   @Test
+   public void keepsSmallValuesExact() {
+      for (long v = 0; v < 32; v++) {
+         assertEquals(v, LatencyHistogram.indexOf(v));
+         assertEquals(v, LatencyHistogram.upperBoundOf((int) v));
+      }
+   }
+
+   @Test
+   public void bucketsTileTheWholeRange() {
+      for (int i = 0; i < 959; i++) {
+         long bound = LatencyHistogram.upperBoundOf(i);
+         assertEquals(i, LatencyHistogram.indexOf(bound));
+         assertEquals(i + 1, LatencyHistogram.indexOf(bound + 1));
+      }
+      assertEquals(959, LatencyHistogram.indexOf(Long.MAX_VALUE));
+      assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBoundOf(959));
+   }
+
+   @Test
+   public void overstatesBySixteenthAtMost() {
+      for (long v = 1; v > 0 && v < Long.MAX_VALUE / 3; v = v * 3 + 1) {
+         for (long x = v; x < v + 100; x++) {
+            long bound = LatencyHistogram.upperBoundOf(LatencyHistogram.indexOf(x));
+            assertTrue(bound >= x, "bound " + bound + " below " + x);
+            assertTrue(bound - x <= x / 16, "bound " + bound + " too far above " + x);
+         }
+      }
+   }
+
+   @Test
+   public void reportsBucketUpperBounds() {
+      LatencyHistogram h = new LatencyHistogram();
+      assertEquals(0, h.percentile(50));
+      assertEquals(0, h.max());
+      for (long v = 1; v <= 100; v++)
+         h.record(v);
+      assertEquals(100, h.count());
+      assertEquals(1, h.percentile(0));
+      // 50 is in [50, 51], 90 in [88, 91] and 100 in [96, 103]
+      assertEquals(51, h.percentile(50));
+      assertEquals(91, h.percentile(90));
+      assertEquals(103, h.percentile(100));
+      assertEquals(103, h.max());
+   }
+
+   @Test
+   public void recordsNegativeValuesAsZero() {
+      LatencyHistogram h = new LatencyHistogram();
+      h.record(-5);
+      assertEquals(1, h.count());
+      assertEquals(0, h.max());
+   }
+
+   @Test
+   public void addsAndResets() {
+      LatencyHistogram a = new LatencyHistogram();
+      LatencyHistogram b = new LatencyHistogram();
+      a.record(10);
+      b.record(10);
+      b.record(1000);
+      a.add(b);
+      assertEquals(3, a.count());
+      assertEquals(10, a.percentile(50));
+      assertEquals(LatencyHistogram.upperBoundOf(LatencyHistogram.indexOf(1000)), a.max());
+      assertEquals(2, b.count());
+      a.reset();
+      assertEquals(0, a.count());
+      assertEquals(0, a.percentile(99));
+   }
+
+}//end LatencyHistogramTest
@@ -0,0 +1,95 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * How RepairScheduler places repairs on companies and days, from loads
+ * given in memory instead of read from the database.
+ */
+public class RepairSchedulerTest {
+
+   private static final LocalDate FIRST = LocalDate.of(2027, 3, 1);
+   private static final long DAY = FIRST.toEpochDay();
+
+   private static List<List<String>> rows(String... rows) {
+      List<List<String>> result = new ArrayList<List<String>>();
+      for (String row : rows)
+         result.add(Arrays.asList(row.split(" ")));
+      return result;
+   }
+
+   private static RepairScheduler scheduler(int capacity, int horizonDays, List<List<String>> loads, String... companies) {
+      return new RepairScheduler(null, FIRST, capacity, horizonDays, rows(companies), loads);
+   }
+
+   private static long[] at(int companyID, long day) {
+      return new long[] { companyID, day };
+   }
+
+   @Test
+   public void spreadsRepairsOverCompanies() {
+      RepairScheduler s = scheduler(1, 365, rows(), "1", "2");
+      assertArrayEquals(at(1, DAY), s.assign(new HashSet<Long>()));
+      assertArrayEquals(at(2, DAY), s.assign(new HashSet<Long>()));
+      assertArrayEquals(at(1, DAY + 1), s.assign(new HashSet<Long>()));
+   }
+
+   @Test
+   public void prefersTheLeastLoadedCompany() {
+      RepairScheduler s = scheduler(2, 365, rows("1 " + DAY + " 1"), "1", "2");
+      assertArrayEquals(at(2, DAY), s.assign(new HashSet<Long>()));
+      assertArrayEquals(at(1, DAY), s.assign(new HashSet<Long>()));
+      assertArrayEquals(at(2, DAY), s.assign(new HashSet<Long>()));
+      assertArrayEquals(at(1, DAY + 1), s.assign(new HashSet<Long>()));
+   }
+
+   @Test
+   public void startsAfterDaysAlreadyFull() {
+      RepairScheduler s = scheduler(2, 365, rows("1 " + DAY + " 2", "1 " + (DAY + 1) + " 2", "9 " + DAY + " 5"), "1");
+      assertArrayEquals(at(1, DAY + 2), s.assign(new HashSet<Long>()));
+   }
+
+   @Test
+   public void skipsDaysTheRoomIsBusy() {
+      RepairScheduler s = scheduler(4, 365, rows(), "1");
+      Set<Long> busy = new HashSet<Long>(Arrays.asList(DAY, DAY + 1));
+      assertArrayEquals(at(1, DAY + 2), s.assign(busy));
+      assertTrue(busy.contains(DAY + 2));
+      // the same room cannot get two repairs on one day
+      assertArrayEquals(at(1, DAY + 3), s.assign(busy));
+      // another room still can
+      assertArrayEquals(at(1, DAY), s.assign(new HashSet<Long>()));
+   }
+
+   @Test
+   public void triesTheNextCompanyWhenTheSoonestHasNoDay() {
+      // company 1 is free first but full on the only day the room is free
+      RepairScheduler s = scheduler(1, 1, rows("1 " + (DAY + 1) + " 1", "2 " + DAY + " 1"), "1", "2");
+      Set<Long> busy = new HashSet<Long>(Arrays.asList(DAY));
+      assertArrayEquals(at(2, DAY + 1), s.assign(busy));
+      // company 1 is still in the queue
+      assertArrayEquals(at(1, DAY), s.assign(new HashSet<Long>()));
+      assertNull(s.assign(new HashSet<Long>()));
+   }
+
+   @Test
+   public void givesUpAfterTheHorizon() {
+      RepairScheduler s = scheduler(1, 1, rows(), "1");
+      Set<Long> alwaysBusy = new HashSet<Long>(Arrays.asList(DAY, DAY + 1));
+      assertNull(s.assign(alwaysBusy));
+      assertArrayEquals(at(1, DAY), s.assign(new HashSet<Long>()));
+      assertArrayEquals(at(1, DAY + 1), s.assign(new HashSet<Long>()));
+      assertNull(s.assign(new HashSet<Long>()));
+      assertNull(scheduler(1, 365, rows()).assign(new HashSet<Long>()));
+   }
+
+}//end RepairSchedulerTest
@@ -0,0 +1,67 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Placement of hotels on shards by ShardMap.
+ */
+public class ShardMapTest {
+
+   @Test
+   public void placesByModuloWithoutRanges() {
+      ShardMap map = new ShardMap(3, new TreeMap<Integer, Integer>());
+      assertEquals(0, map.shardOf(0));
+      assertEquals(1, map.shardOf(7));
+      assertEquals(2, map.shardOf(-1));
+   }
+
+   @Test
+   public void placesByRange() {
+      TreeMap<Integer, Integer> ranges = new TreeMap<Integer, Integer>();
+      ranges.put(1, 0);
+      ranges.put(500, 1);
+      ShardMap map = new ShardMap(2, ranges);
+      assertEquals(0, map.shardOf(1));
+      assertEquals(0, map.shardOf(499));
+      assertEquals(1, map.shardOf(500));
+      assertEquals(1, map.shardOf(100000));
+      // below the first range
+      assertEquals(0, map.shardOf(0));
+   }
+
+   @Test
+   public void movedHotelsOverrideRangesAndModulo() {
+      TreeMap<Integer, Integer> ranges = new TreeMap<Integer, Integer>();
+      ranges.put(1, 0);
+      ShardMap byRange = new ShardMap(2, ranges);
+      byRange.place(42, 1);
+      assertEquals(1, byRange.shardOf(42));
+      assertEquals(0, byRange.shardOf(43));
+
+      ShardMap byModulo = new ShardMap(2, new TreeMap<Integer, Integer>());
+      byModulo.place(42, 1);
+      assertEquals(1, byModulo.shardOf(42));
+      byModulo.place(42, 0);
+      assertEquals(0, byModulo.shardOf(42));
+   }
+
+   @Test
+   public void readsRangesFromSystemProperties() {
+      try{
+         System.setProperty("hotel.shardRanges", " 1:0, 500:1 ");
+         ShardMap map = ShardMap.fromSystemProperties(2);
+         assertEquals(0, map.shardOf(499));
+         assertEquals(1, map.shardOf(500));
+
+         System.setProperty("hotel.shardRanges", "1:0,500:2");
+         assertThrows(IllegalArgumentException.class, () -> ShardMap.fromSystemProperties(2));
+      }finally{
+         System.clearProperty("hotel.shardRanges");
+      }
+      assertEquals(1, ShardMap.fromSystemProperties(2).shardOf(499));
+   }
+
+}//end ShardMapTest
@@ -0,0 +1,72 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Which slow statements SlowQueryLog may re-run under EXPLAIN ANALYZE, and
+ * which parameters it keeps out of the log.
+ */
+public class SlowQueryLogTest {
+
+   @Test
+   public void explainsPlainReads() {
+      assertTrue(SlowQueryLog.isExplainable("SELECT * FROM Rooms WHERE hotelID = ?"));
+      assertTrue(SlowQueryLog.isExplainable("  select r.price from Rooms r order by r.price"));
+      // names that only contain the keywords
+      assertTrue(SlowQueryLog.isExplainable("SELECT updatedOn FROM RoomUpdatesLog"));
+   }
+
+   @Test
+   public void skipsWrites() {
+      assertFalse(SlowQueryLog.isExplainable("UPDATE Rooms SET price = ?"));
+      assertFalse(SlowQueryLog.isExplainable("WITH moved AS (DELETE FROM RoomRepairs RETURNING *) SELECT * FROM moved"));
+   }
+
+   @Test
+   public void skipsReadsWithSideEffects() {
+      assertFalse(SlowQueryLog.isExplainable("SELECT nextval('users_userID_seq') FROM generate_series(1, ?)"));
+      assertFalse(SlowQueryLog.isExplainable("SELECT r.roomNumber, pg_advisory_xact_lock(r.hotelID, r.roomNumber) FROM Rooms r"));
+      assertFalse(SlowQueryLog.isExplainable("SELECT pg_try_advisory_lock(1)"));
+      assertFalse(SlowQueryLog.isExplainable("SELECT pg_export_snapshot(), MIN(bookingID) FROM RoomBookings"));
+      assertFalse(SlowQueryLog.isExplainable("SELECT roomNumber FROM Rooms WHERE hotelID = ? FOR UPDATE"));
+      assertFalse(SlowQueryLog.isExplainable("SELECT * FROM RoomRepairs LIMIT ? for no key update skip locked"));
+   }
+
+   @Test
+   public void findsStatementsOnUsers() {
+      assertTrue(SlowQueryLog.isSensitive("SELECT * FROM USERS WHERE userID = ? AND password = ?"));
+      assertTrue(SlowQueryLog.isSensitive("INSERT INTO Users (userID, name, password, userType) VALUES (?, ?, ?, ?)"));
+      assertFalse(SlowQueryLog.isSensitive("SELECT * FROM Rooms WHERE hotelID = ?"));
+      assertFalse(SlowQueryLog.isSensitive("SELECT userID FROM UsersArchive"));
+   }
+
+   @Test
+   public void redactsParametersOfStatementsOnUsers() {
+      final List<String> entries = new ArrayList<String>();
+      Logger logger = Logger.getAnonymousLogger();
+      logger.setUseParentHandlers(false);
+      logger.addHandler(new Handler() {
+         public void publish(LogRecord record) {
+            entries.add(record.getMessage());
+         }
+         public void flush() {
+         }
+         public void close() {
+         }
+      });
+      SlowQueryLog log = new SlowQueryLog(0, true, logger);
+      log.log(null, "logIn", "SELECT * FROM USERS WHERE userID = ? AND password = ?", new Object[] { 7, "hunter2" }, 1000000L, 1);
+      log.log(null, "other", "UPDATE Rooms SET price = ? WHERE hotelID = ?", new Object[] { 120, 7 }, 1000000L, 1);
+      assertFalse(entries.get(0).contains("hunter2"));
+      assertTrue(entries.get(0).contains("params: [redacted]"));
+      assertTrue(entries.get(1).contains("params: [120, 7]"));
+   }
+
+}//end SlowQueryLogTest
@@ -0,0 +1,11 @@
+#!/bin/bash
+# Starts a streaming replica of the $PGPORT cluster on $REPLICA_PORT for
+# testing read/write splitting. The primary needs a replication entry for
+# $USER in pg_hba.conf (present in the default local setup).
+REPLICA_PORT=${REPLICA_PORT:-$((PGPORT + 1))}
+REPLICA_DATA=${REPLICA_DATA:-/tmp/$USER/replica_data}
+
+pg_basebackup -h localhost -p $PGPORT -U $USER -D $REPLICA_DATA -R -X stream
+pg_ctl -D $REPLICA_DATA -o "-p $REPLICA_PORT" -l $REPLICA_DATA/replica.log start
+
+echo "Run the client with -Dhotel.replicas=localhost:$REPLICA_PORT"
@@ -0,0 +1,4 @@
+#!/bin/bash
+# Adds synthetic load-test data, e.g. SCALE=10 ./seed_db.sh
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -h localhost -p $PGPORT -v scale=${SCALE:-1} $USER"_DB" < $DIR/../src/seed_scale.sql
@@ -0,0 +1,31 @@
+-- Rows moved out of the hot tables by RetentionJob. Same columns as the
+-- source tables plus the time they were archived; no keys, foreign keys or
+-- triggers, so archiving never depends on the rows they used to reference.
+-- Run on every shard after create_tables.sql.
+CREATE TABLE IF NOT EXISTS RoomUpdatesLogArchive (
+                            LIKE RoomUpdatesLog INCLUDING STORAGE,
+                            archivedOn timestamp NOT NULL DEFAULT now()
+) WITH (fillfactor = 100);
+
+CREATE TABLE IF NOT EXISTS RoomRepairsArchive (
+                            LIKE RoomRepairs INCLUDING STORAGE,
+                            archivedOn timestamp NOT NULL DEFAULT now()
+) WITH (fillfactor = 100);
+
+CREATE TABLE IF NOT EXISTS RoomRepairRequestsArchive (
+                            LIKE RoomRepairRequests INCLUDING STORAGE,
+                            archivedOn timestamp NOT NULL DEFAULT now()
+) WITH (fillfactor = 100);
+
+-- Archived rows are only ever appended, oldest first
+CREATE INDEX IF NOT EXISTS room_updates_log_archive_index
+ON RoomUpdatesLogArchive USING BRIN
+(updatedOn);
+
+CREATE INDEX IF NOT EXISTS room_repairs_archive_index
+ON RoomRepairsArchive USING BRIN
+(repairDate);
+
+CREATE INDEX IF NOT EXISTS room_repair_requests_archive_index
+ON RoomRepairRequestsArchive USING BTREE
+(repairID);
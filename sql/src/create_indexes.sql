@@ -18,10 +18,11 @@ CREATE INDEX room_bookings_index
 ON RoomBookings USING BTREE
 (bookingDate);
 
--- Used in viewRecentUpdates
+-- Used in viewRecentUpdates, a manager's latest updates are read straight off
+-- the end of the index instead of sorting all of the manager's rows
 CREATE INDEX room_updates_log_index
 ON RoomUpdatesLog USING BTREE
-(managerID);
+(managerID, updatedOn);
 
 -- Used in placeRoomRepairRequests
 CREATE INDEX maintenance_company_index
@@ -31,4 +32,75 @@ ON MaintenanceCompany USING BTREE
 -- Used in placeRoomRepairRequests
 CREATE INDEX room_repairs_index
 ON RoomRepairs USING BTREE
-(repairID);
\ No newline at end of file
+(repairID);
+
+-- Used in bookRooms and BookingBatcher, a room can only be booked once per night
+-- and ON CONFLICT (hotelID, roomNumber, bookingDate) needs a matching unique index
+CREATE UNIQUE INDEX room_bookings_slot_index
+ON RoomBookings USING BTREE
+(hotelID, roomNumber, bookingDate);
+
+-- Used in searchRooms, bounding box prefilter before the exact distance test
+CREATE INDEX hotel_location_index
+ON Hotel USING BTREE
+(latitude, longitude);
+
+-- Used in searchRooms, each hotel's rooms are read cheapest first and the scan
+-- stops after K free ones
+CREATE INDEX rooms_price_index
+ON Rooms USING BTREE
+(hotelID, price);
+
+-- Used in RetentionJob, rows are appended in updatedOn order so a block range
+-- summary is enough to find the old rows, at a fraction of a btree's size
+CREATE INDEX room_updates_log_time_index
+ON RoomUpdatesLog USING BRIN
+(updatedOn);
+
+-- Used in RetentionJob and RepairScheduler. RepairScheduler places repairs up
+-- to a year ahead, so repairDate does not follow insert order and a BRIN's
+-- block ranges would overlap; RetentionJob also reads it oldest first
+CREATE INDEX room_repairs_date_index
+ON RoomRepairs USING BTREE
+(repairDate);
+
+-- Used in the checkRoomRepair trigger, RepairScheduler and the availability
+-- queries, which look up the repairs of one room on given days
+CREATE INDEX room_repairs_slot_index
+ON RoomRepairs USING BTREE
+(hotelID, roomNumber, repairDate);
+
+-- The filterRooms indexes below lead with the ORDER BY columns of one
+-- RoomOrder, ending in the hotelID, roomNumber tie-breakers, so rooms come out
+-- of the index already in order and the scan stops after LIMIT matches. They
+-- also hold every Rooms column filterRooms reads, so an index-only scan tests
+-- capacity, roomType and the amenities bits on the index entries without
+-- fetching rows; amenities & N <> 0 stays a filter, not an index condition.
+
+-- Used in filterRooms for one room type, cheapest or most expensive first
+CREATE INDEX rooms_type_price_index
+ON Rooms USING BTREE
+(roomType, price, hotelID, roomNumber, capacity, amenities);
+
+-- Used in filterRooms for any room type, cheapest or most expensive first
+CREATE INDEX rooms_features_price_index
+ON Rooms USING BTREE
+(price, hotelID, roomNumber, capacity, amenities, roomType);
+
+-- Used in filterRooms, largest first; capacity >= ? is the range scanned
+CREATE INDEX rooms_features_capacity_index
+ON Rooms USING BTREE
+(capacity DESC, price, hotelID, roomNumber, amenities, roomType);
+
+-- Used in filterRooms, the few rooms with these amenities are found without
+-- scanning every room in the price range; the queries repeat the predicates
+-- literally so the planner can match them
+CREATE INDEX rooms_pets_price_index
+ON Rooms USING BTREE
+(price, hotelID, roomNumber, capacity, amenities, roomType)
+WHERE amenities & 16 <> 0;
+
+CREATE INDEX rooms_accessible_price_index
+ON Rooms USING BTREE
+(price, hotelID, roomNumber, capacity, amenities, roomType)
+WHERE amenities & 32 <> 0;
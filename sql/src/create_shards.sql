@@ -0,0 +1,28 @@
+-- Run on every shard after create_tables.sql, e.g. for the second of three shards:
+--    psql -v shard=1 -v shards=3 ... < create_shards.sql
+-- Users, Hotel and MaintenanceCompany are reference tables loaded on every shard;
+-- Rooms and everything keyed by hotelID lives on the shard chosen by ShardMap.
+
+-- Hotels moved by ShardRebalancer, only read from the first shard. Every move
+-- takes a new version, which running clients compare to notice it.
+CREATE SEQUENCE IF NOT EXISTS hotelshards_version_seq;
+CREATE TABLE IF NOT EXISTS HotelShards ( hotelID integer NOT NULL,
+                                         shard integer NOT NULL,
+                                         version bigint NOT NULL DEFAULT nextval('hotelshards_version_seq'),
+                                         PRIMARY KEY(hotelID)
+);
+CREATE INDEX IF NOT EXISTS hotelshards_version_index ON HotelShards (version);
+
+-- Interleave the serial sequences so IDs never collide between shards and
+-- rows keep their IDs when a hotel is moved: shard k hands out k, k+n, k+2n, ...
+ALTER SEQUENCE roombookings_bookingid_seq INCREMENT BY :shards;
+SELECT setval('roombookings_bookingid_seq', (SELECT (COALESCE(MAX(bookingID), 0) / :shards + 1) * :shards + :shard));
+
+ALTER SEQUENCE roomrepairs_repairid_seq INCREMENT BY :shards;
+SELECT setval('roomrepairs_repairid_seq', (SELECT (COALESCE(MAX(repairID), 0) / :shards + 1) * :shards + :shard));
+
+ALTER SEQUENCE roomrepairrequests_requestnumber_seq INCREMENT BY :shards;
+SELECT setval('roomrepairrequests_requestnumber_seq', (SELECT (COALESCE(MAX(requestNumber), 0) / :shards + 1) * :shards + :shard));
+
+ALTER SEQUENCE roomupdateslog_updatenumber_seq INCREMENT BY :shards;
+SELECT setval('roomupdateslog_updatenumber_seq', (SELECT (COALESCE(MAX(updateNumber), 0) / :shards + 1) * :shards + :shard));
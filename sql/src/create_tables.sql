@@ -6,6 +6,9 @@ DROP TABLE IF EXISTS RoomBookings CASCADE;
 DROP TABLE IF EXISTS RoomRepairs CASCADE;
 DROP TABLE IF EXISTS RoomRepairRequests CASCADE;
 DROP TABLE IF EXISTS RoomUpdatesLog CASCADE;
+DROP TABLE IF EXISTS RoomRepairsArchive CASCADE;
+DROP TABLE IF EXISTS RoomRepairRequestsArchive CASCADE;
+DROP TABLE IF EXISTS RoomUpdatesLogArchive CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50),
@@ -15,6 +18,9 @@ CREATE TABLE Users ( userID serial,
 );
 --Note: 'serial' is a special datatype of Postgres. The value of the field having serial datatype
 --is autoincremented if any new row is inserted.
+--Each session reserves 100 userIDs at a time instead of updating the sequence for every signup;
+--IDs stay unique but are only increasing per session, and unused reserved IDs are skipped.
+ALTER SEQUENCE users_userid_seq CACHE 100;
 
 CREATE TABLE Hotel ( hotelID integer, 
                      hotelName char(30) NOT NULL,
@@ -30,6 +36,12 @@ CREATE TABLE Rooms ( hotelID integer NOT NULL,
                     roomNumber integer NOT NULL,
                     price integer NOT NULL,
                     imageURL char(30),
+                    roomType char(10) NOT NULL DEFAULT 'standard', ---one of Hotel.ROOM_TYPES
+                    capacity integer NOT NULL DEFAULT 2,
+                    amenities integer NOT NULL DEFAULT 0, ---bit i set when the room has Hotel.AMENITIES[i]
+                    CHECK (roomType IN ('standard', 'single', 'double', 'suite', 'family')),
+                    CHECK (capacity > 0),
+                    CHECK (amenities >= 0 AND amenities < 256), ---Hotel.AMENITIES has 8 entries
                     PRIMARY KEY(hotelID, roomNumber), 
                     FOREIGN KEY(hotelID) REFERENCES Hotel(hotelID) ON DELETE CASCADE
 );
@@ -0,0 +1,54 @@
+-- Shows the plans and timings of Hotel.filterRooms, one query per index.
+-- Run on seeded data, e.g. after SCALE=10 ./seed_db.sh:
+--    psql ... < explain_filter_rooms.sql
+-- Every plan should read one of the filterRooms indexes of create_indexes.sql
+-- with an Index Only Scan and no Sort node above it, and stop after the LIMIT.
+
+-- sets the visibility map bits index-only scans rely on
+VACUUM ANALYZE Rooms;
+
+-- any type, cheapest first: rooms_features_price_index
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT r.hotelID, h.hotelName, r.roomNumber, r.roomType, r.capacity, r.price, r.amenities
+FROM Rooms r JOIN Hotel h ON h.hotelID = r.hotelID
+WHERE r.price BETWEEN 300 AND 600 AND r.capacity >= 2 AND r.amenities & 1 <> 0 AND r.amenities & 4 <> 0
+ORDER BY r.price, r.hotelID, r.roomNumber LIMIT 20;
+
+-- any type, most expensive first: rooms_features_price_index backwards
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT r.hotelID, h.hotelName, r.roomNumber, r.roomType, r.capacity, r.price, r.amenities
+FROM Rooms r JOIN Hotel h ON h.hotelID = r.hotelID
+WHERE r.price BETWEEN 300 AND 600 AND r.capacity >= 2
+ORDER BY r.price DESC, r.hotelID DESC, r.roomNumber DESC LIMIT 20;
+
+-- one type: rooms_type_price_index
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT r.hotelID, h.hotelName, r.roomNumber, r.roomType, r.capacity, r.price, r.amenities
+FROM Rooms r JOIN Hotel h ON h.hotelID = r.hotelID
+WHERE r.price BETWEEN 300 AND 600 AND r.capacity >= 3 AND r.roomType = CAST('suite' AS char(10))
+ORDER BY r.price, r.hotelID, r.roomNumber LIMIT 20;
+
+-- largest first: rooms_features_capacity_index
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT r.hotelID, h.hotelName, r.roomNumber, r.roomType, r.capacity, r.price, r.amenities
+FROM Rooms r JOIN Hotel h ON h.hotelID = r.hotelID
+WHERE r.price BETWEEN 300 AND 600 AND r.capacity >= 2
+ORDER BY r.capacity DESC, r.price, r.hotelID, r.roomNumber LIMIT 20;
+
+-- a rare amenity: rooms_accessible_price_index
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT r.hotelID, h.hotelName, r.roomNumber, r.roomType, r.capacity, r.price, r.amenities
+FROM Rooms r JOIN Hotel h ON h.hotelID = r.hotelID
+WHERE r.price BETWEEN 100 AND 2000 AND r.capacity >= 1 AND r.amenities & 32 <> 0
+ORDER BY r.price, r.hotelID, r.roomNumber LIMIT 20;
+
+-- free on one night: the same index, each candidate probing the slot indexes
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT r.hotelID, h.hotelName, r.roomNumber, r.roomType, r.capacity, r.price, r.amenities
+FROM Rooms r JOIN Hotel h ON h.hotelID = r.hotelID
+WHERE r.price BETWEEN 300 AND 600 AND r.capacity >= 2
+AND NOT EXISTS (SELECT 1 FROM RoomBookings b WHERE b.hotelID = r.hotelID AND b.roomNumber = r.roomNumber
+                AND b.bookingDate = CURRENT_DATE + 30)
+AND NOT EXISTS (SELECT 1 FROM RoomRepairs p WHERE p.hotelID = r.hotelID AND p.roomNumber = r.roomNumber
+                AND p.repairDate = CURRENT_DATE + 30)
+ORDER BY r.price, r.hotelID, r.roomNumber LIMIT 20;
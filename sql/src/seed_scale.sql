@@ -0,0 +1,68 @@
+-- Generates synthetic data for load testing on top of whatever is loaded.
+-- Run after create_tables.sql, create_indexes.sql and triggers.sql:
+--    psql -v scale=10 ... < seed_scale.sql
+-- Each unit of scale adds 100 hotels with 50 rooms each, 100 managers,
+-- 1000 customers, 10 maintenance companies, 20000 bookings and 200 repairs.
+
+SELECT 100 * :scale AS hotels,
+       1000 * :scale AS customers,
+       10 * :scale AS companies,
+       20000 * :scale AS bookings,
+       200 * :scale AS repairs \gset
+SELECT COALESCE(MAX(userID), 0) AS user_base FROM Users \gset
+SELECT COALESCE(MAX(hotelID), 0) AS hotel_base FROM Hotel \gset
+SELECT COALESCE(MAX(companyID), 0) AS company_base FROM MaintenanceCompany \gset
+
+-- one manager per hotel, then the customers
+INSERT INTO Users (userID, name, password, userType)
+SELECT :user_base + g, 'manager' || g, 'xyz', 'manager'
+FROM generate_series(1, :hotels) g;
+
+INSERT INTO Users (userID, name, password, userType)
+SELECT :user_base + :hotels + g, 'customer' || g, 'xyz', 'customer'
+FROM generate_series(1, :customers) g;
+
+SELECT setval('users_userid_seq', (SELECT MAX(userID) FROM Users));
+
+INSERT INTO Hotel (hotelID, hotelName, latitude, longitude, dateEstablished, managerUserID)
+SELECT :hotel_base + g, 'hotel' || g,
+       round((random() * 100)::numeric, 6), round((random() * 100)::numeric, 6),
+       DATE '1950-01-01' + (random() * 25000)::integer, :user_base + g
+FROM generate_series(1, :hotels) g;
+
+-- amenities: wifi and parking are common, pets and accessible rooms are rare
+INSERT INTO Rooms (hotelID, roomNumber, price, imageURL, roomType, capacity, amenities)
+SELECT :hotel_base + h, r, 100 + (random() * 1900)::integer, 'room' || r,
+       (ARRAY['standard', 'single', 'double', 'suite', 'family'])[1 + r % 5],
+       (ARRAY[2, 1, 2, 3, 4])[1 + r % 5],
+       CASE WHEN random() < 0.9 THEN 1 ELSE 0 END
+       + CASE WHEN random() < 0.4 THEN 2 ELSE 0 END
+       + CASE WHEN random() < 0.6 THEN 4 ELSE 0 END
+       + CASE WHEN random() < 0.2 THEN 8 ELSE 0 END
+       + CASE WHEN random() < 0.05 THEN 16 ELSE 0 END
+       + CASE WHEN random() < 0.05 THEN 32 ELSE 0 END
+       + CASE WHEN random() < 0.1 THEN 64 ELSE 0 END
+       + CASE WHEN random() < 0.1 THEN 128 ELSE 0 END
+FROM generate_series(1, :hotels) h, generate_series(1, 50) r;
+
+INSERT INTO MaintenanceCompany (companyID, name, addrress)
+SELECT :company_base + g, 'company' || g, 'address' || g
+FROM generate_series(1, :companies) g;
+
+-- random nights over the next year, skipping slots that are already taken
+INSERT INTO RoomBookings (customerID, hotelID, roomNumber, bookingDate)
+SELECT :user_base + :hotels + 1 + (random() * (:customers - 1))::integer,
+       :hotel_base + 1 + (random() * (:hotels - 1))::integer,
+       1 + (random() * 49)::integer,
+       CURRENT_DATE + (random() * 365)::integer
+FROM generate_series(1, :bookings)
+ON CONFLICT (hotelID, roomNumber, bookingDate) DO NOTHING;
+
+INSERT INTO RoomRepairs (companyID, hotelID, roomNumber, repairDate)
+SELECT :company_base + 1 + (random() * (:companies - 1))::integer,
+       :hotel_base + 1 + (random() * (:hotels - 1))::integer,
+       1 + (random() * 49)::integer,
+       CURRENT_DATE - (random() * 365)::integer
+FROM generate_series(1, :repairs);
+
+ANALYZE;
@@ -84,3 +84,60 @@ BEFORE INSERT
 ON RoomRepairRequests
 FOR EACH ROW
 EXECUTE PROCEDURE get_managerID_repair_request();
+
+-- Reject bookings of a room on a day it is under repair, with the same
+-- unique_violation a taken night gets. The shared advisory lock on the room
+-- waits for RepairScheduler and check_room_booking, which hold it exclusively
+-- while they read the room's bookings and insert repairs, so neither a
+-- booking nor a repair can miss the other.
+CREATE OR REPLACE FUNCTION check_room_repair()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+    PERFORM pg_advisory_xact_lock_shared(NEW.hotelID, NEW.roomNumber);
+    IF EXISTS (SELECT 1 FROM RoomRepairs p
+               WHERE p.hotelID = NEW.hotelID AND p.roomNumber = NEW.roomNumber
+               AND p.repairDate = NEW.bookingDate) THEN
+        RAISE EXCEPTION 'Room % at Hotel ID % is under repair on %', NEW.roomNumber, NEW.hotelID, NEW.bookingDate
+        USING ERRCODE = 'unique_violation';
+    END IF;
+    RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Before a booking is inserted or moved, check the room is not under repair
+DROP TRIGGER IF EXISTS checkRoomRepair ON RoomBookings;
+CREATE TRIGGER checkRoomRepair
+BEFORE INSERT OR UPDATE OF hotelID, roomNumber, bookingDate
+ON RoomBookings
+FOR EACH ROW
+EXECUTE PROCEDURE check_room_repair();
+
+-- Reject repairs of a room on a night it is booked, whichever way they are
+-- placed. The exclusive advisory lock on the room waits for bookings that
+-- passed check_room_repair but have not committed; RepairScheduler already
+-- holds it, so taking it again there costs nothing.
+CREATE OR REPLACE FUNCTION check_room_booking()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+    PERFORM pg_advisory_xact_lock(NEW.hotelID, NEW.roomNumber);
+    IF EXISTS (SELECT 1 FROM RoomBookings b
+               WHERE b.hotelID = NEW.hotelID AND b.roomNumber = NEW.roomNumber
+               AND b.bookingDate = NEW.repairDate) THEN
+        RAISE EXCEPTION 'Room % at Hotel ID % is booked on %', NEW.roomNumber, NEW.hotelID, NEW.repairDate
+        USING ERRCODE = 'unique_violation';
+    END IF;
+    RETURN NEW;
+END;
+$BODY$
+LANGUAGE plpgsql VOLATILE;
+
+-- Before a repair is inserted or moved, check the room is not booked
+DROP TRIGGER IF EXISTS checkRoomBooking ON RoomRepairs;
+CREATE TRIGGER checkRoomBooking
+BEFORE INSERT OR UPDATE OF hotelID, roomNumber, repairDate
+ON RoomRepairs
+FOR EACH ROW
+EXECUTE PROCEDURE check_room_booking();